@@ -0,0 +1,80 @@
+/**
+ * A Bloom filter: a set of values that can answer "definitely not in the set" or "maybe in the set"
+ * The false positive rate depends on the number of bits per value (it is chosen when the filter is created)
+ */
+public class BloomFilter {
+    private long[] bits;
+    private int numBits;
+    private int numHashes;
+    private int capacity;
+    private int count;
+
+    /**
+     * constructor
+     * @param capacity the expected number of values
+     * @param falsePositiveRate the false positive rate (for the expected number of values)
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+        }
+        this.capacity = Math.max(capacity, 1);
+        long m = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / this.capacity * Math.log(2)));
+        this.bits = new long[(numBits + 63) / 64];
+    }
+
+    /**
+     * Adds a value to the filter
+     * @param value
+     */
+    public void add(Object value) {
+        long hash = mix(value.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /**
+     * Returns false if the value was definitely not added to the filter, true if it may have been
+     * @param value
+     * @return
+     */
+    public boolean mightContain(Object value) {
+        long hash = mix(value.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if more values were added than the filter was sized for (its false positive rate is higher)
+     * @return
+     */
+    public boolean isFull() {
+        return count > capacity;
+    }
+
+    /**
+     * Spreads the bits of a hash code over a long (the finalizer of MurmurHash3)
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
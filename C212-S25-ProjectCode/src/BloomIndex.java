@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Bloom filters of a table: for each column, one filter for the whole column
+ * and one filter per block of rows (a block has FilterKernels.BATCH_SIZE rows)
+ *
+ * An equality condition (attribute = value) is answered without scanning the table
+ * when the column filter does not contain the value, and only the blocks whose filter may contain the value are scanned
+ * (the same is done for the values of an IN condition, the probe side of a semi join)
+ *
+ * The filters are built when the table is loaded and maintained on insert and update (values are only added,
+ * so an update can only add false positives); they are rebuilt after a delete (the rows move to other blocks)
+ * or when the column filters are over capacity
+ * Values are hashed as FilterKernels.key, so the values the kernels compare as equal (-0.0 and 0.0) have the same bits
+ * The negative answers and the skipped blocks are counted in the metrics (bloom.negatives, bloom.blocks.skipped)
+ */
+public class BloomIndex {
+    private static final int BLOCK_SIZE = FilterKernels.BATCH_SIZE;
+    private static final int MAX_PROBED_VALUES = 64;
+    private static final LongAdder NEGATIVES = Metrics.counter("bloom.negatives");
+    private static final LongAdder BLOCKS_SKIPPED = Metrics.counter("bloom.blocks.skipped");
+
+    private double falsePositiveRate;
+    private BloomFilter[] columns;
+    private List<BloomFilter[]> blocks;
+
+    /**
+     * constructor
+     * Builds the filters from the table tuples
+     * @param table
+     * @param falsePositiveRate
+     */
+    public BloomIndex(ITable table, double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        rebuild(table);
+    }
+
+    /**
+     * Rebuilds all the filters from the table tuples
+     * The column filters are sized for twice the number of rows (so that inserts do not trigger a rebuild right away)
+     * @param table
+     */
+    public void rebuild(ITable table) {
+        int size = table.getSchema().size();
+        List<ITuple> tuples = table.getTuples();
+        columns = new BloomFilter[size];
+        for (int c = 0; c < size; c++) {
+            columns[c] = new BloomFilter(Math.max(2 * tuples.size(), BLOCK_SIZE), falsePositiveRate);
+        }
+        blocks = new ArrayList<>();
+        for (int r = 0; r < tuples.size(); r++) {
+            add(r, tuples.get(r));
+        }
+    }
+
+    /**
+     * Adds the values of a tuple (at the given row index) to the column and block filters
+     * @param rowId
+     * @param tuple
+     */
+    public void add(int rowId, ITuple tuple) {
+        int block = rowId / BLOCK_SIZE;
+        while (blocks.size() <= block) {
+            BloomFilter[] filters = new BloomFilter[columns.length];
+            for (int c = 0; c < filters.length; c++) {
+                filters[c] = new BloomFilter(BLOCK_SIZE, falsePositiveRate);
+            }
+            blocks.add(filters);
+        }
+        BloomFilter[] blockFilters = blocks.get(block);
+        for (int c = 0; c < columns.length; c++) {
+            Object value = FilterKernels.key(tuple.getValue(c));
+            if (value != null) {
+                columns[c].add(value);
+                blockFilters[c].add(value);
+            }
+        }
+    }
+
+    /**
+     * Adds the last tuple of the table (after an insert), rebuilding the filters if they are over capacity
+     * @param table
+     */
+    public void inserted(ITable table) {
+        List<ITuple> tuples = table.getTuples();
+        add(tuples.size() - 1, tuples.get(tuples.size() - 1));
+        if (columns.length > 0 && columns[0].isFull()) {
+            rebuild(table);
+        }
+    }
+
+    /**
+     * Returns the indexes of the tuples that satisfy the condition, using the filters to skip rows
+     * Returns null if the filters cannot be used for the condition (it is not an equality on a valid value)
+     * @param condition
+     * @param table
+     * @return the selection vector, or null
+     * @throws InvalidQueryException
+     */
+    public int[] select(Condition condition, ITable table) throws InvalidQueryException {
+        if (condition instanceof SemiJoinCondition) {
+            return selectIn((SemiJoinCondition) condition, table);
+        }
+        if (!"=".equals(condition.getOperator())) {
+            return null;
+        }
+        ISchema schema = table.getSchema();
+        int index = schema.indexOf(condition.getOperand1());
+        if (index == -1) {
+            return null;
+        }
+        Object value;
+        try {
+            value = FilterKernels.key(schema.getColumn(index).getType().parse(condition.getOperand2()));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        if (value == null || !columns[index].mightContain(value)) {
+            NEGATIVES.increment();
+            return new int[0];
+        }
+        return selectBlocks(condition, table, index, Collections.singletonList(value));
+    }
+
+    /**
+     * Returns the indexes of the tuples that satisfy an IN condition (a semi join), using the filters to skip rows
+     * The values of the IN list that are not in the column filter are dropped: if none is left, no tuple can match,
+     * otherwise (for a short list) only the blocks whose filter may contain one of the values are scanned
+     * Returns null if the filters cannot be used (NOT IN, EXISTS, long lists)
+     * @param condition
+     * @param table
+     * @return the selection vector, or null
+     * @throws InvalidQueryException
+     */
+    private int[] selectIn(SemiJoinCondition condition, ITable table) throws InvalidQueryException {
+        if (condition.isAnti() || condition.getKeys() == null) {
+            return null;
+        }
+        int index = table.getSchema().indexOf(condition.getOperand1());
+        if (index == -1) {
+            return null;
+        }
+        List<Object> values = new ArrayList<>();
+        for (Object key : condition.getKeys()) {
+            if (columns[index].mightContain(key)) {
+                values.add(key);
+            }
+        }
+        if (values.isEmpty()) {
+            NEGATIVES.increment();
+            return new int[0];
+        }
+        if (values.size() > MAX_PROBED_VALUES) {
+            return null;
+        }
+        return selectBlocks(condition, table, index, values);
+    }
+
+    /**
+     * Runs the condition on the blocks whose filter (for the given column) may contain one of the values
+     */
+    private int[] selectBlocks(Condition condition, ITable table, int index, List<Object> values)
+            throws InvalidQueryException {
+        ISchema schema = table.getSchema();
+        List<ITuple> tuples = table.getTuples();
+        int[] sel = new int[Math.min(tuples.size(), BLOCK_SIZE)];
+        int count = 0;
+        for (int b = 0; b < blocks.size(); b++) {
+            if (!mightContainAny(blocks.get(b)[index], values)) {
+                BLOCKS_SKIPPED.increment();
+                continue;
+            }
+            int start = b * BLOCK_SIZE;
+            int end = Math.min(start + BLOCK_SIZE, tuples.size());
+            Database.ROWS_SCANNED.add(end - start);
+            int[] blockSel = condition.select(tuples.subList(start, end), schema);
+            if (count + blockSel.length > sel.length) {
+                sel = Arrays.copyOf(sel, Math.max(sel.length * 2, count + blockSel.length));
+            }
+            for (int i = 0; i < blockSel.length; i++) {
+                sel[count++] = start + blockSel[i];
+            }
+        }
+        return count == sel.length ? sel : Arrays.copyOf(sel, count);
+    }
+
+    private static boolean mightContainAny(BloomFilter filter, List<Object> values) {
+        for (Object value : values) {
+            if (filter.mightContain(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
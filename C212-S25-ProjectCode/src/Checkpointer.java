@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites (compacts) the files of the modified (dirty) tables of a database in the background
+ *
+ * With a checkpointer, the inserts, updates and deletes are only made in memory (the queries do not wait for the disk)
+ * and the modified tables are marked dirty. The checkpointer rewrites the dirty tables every interval,
+ * or as soon as the dirty bytes go over a threshold, and one last time when it is closed
+ * A table is rewritten atomically (its new snapshot replaces the snapshot and the log, see IO.writeRows),
+ * so after a crash a table has all the changes of its last checkpoint and none of the later ones
+ *
+ * A table stays dirty until the version that was written is the latest one, so a table that is being written
+ * (or that was modified again while it was being written) is never evicted from memory
+ */
+public class Checkpointer {
+    private Database db;
+    private String folderName;
+    private long dirtyBytesThreshold;
+    private Map<String, Long> dirty;
+    private long dirtyBytes;
+    private long version;
+    private boolean checkpointScheduled;
+    private long checkpoints;
+    private long tablesWritten;
+    private ScheduledExecutorService executor;
+
+    /**
+     * constructor
+     * Starts the background thread
+     * @param db
+     * @param folderName
+     * @param intervalMillis the time between two checkpoints
+     * @param dirtyBytesThreshold the (estimated) number of modified bytes that triggers a checkpoint
+     */
+    public Checkpointer(Database db, String folderName, long intervalMillis, long dirtyBytesThreshold) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + intervalMillis);
+        }
+        this.db = db;
+        this.folderName = folderName;
+        this.dirtyBytesThreshold = dirtyBytesThreshold;
+        this.dirty = new HashMap<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runCheckpoint, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks a table dirty
+     * Triggers a checkpoint if the dirty bytes go over the threshold
+     * @param tableName
+     * @param bytes the (estimated) number of modified bytes
+     */
+    public synchronized void markDirty(String tableName, long bytes) {
+        dirty.put(key(tableName), ++version);
+        dirtyBytes += Math.max(bytes, 0);
+        if (dirtyBytes >= dirtyBytesThreshold && !checkpointScheduled && !executor.isShutdown()) {
+            checkpointScheduled = true;
+            executor.execute(this::runCheckpoint);
+        }
+    }
+
+    /**
+     * Returns the names (in lower case) of the dirty tables
+     * @return
+     */
+    public synchronized Set<String> getDirtyTables() {
+        return new HashSet<>(dirty.keySet());
+    }
+
+    /**
+     * Writes the dirty tables to the disk
+     *
+     * Implements the following algorithm
+     *
+     * Lock the database
+     *   For each dirty table
+     *     Copy the table rows and remember the table version
+     * Unlock the database
+     * For each copied table
+     *   Write the rows to the snapshot file, replacing the log file (by calling the write rows method)
+     *   If the table was not modified since it was copied
+     *     Mark the table clean
+     */
+    public void checkpoint() {
+        Map<String, List<Object[]>> copies = new HashMap<>();
+        Map<String, ISchema> schemas = new HashMap<>();
+        Map<String, Long> versions = new HashMap<>();
+        synchronized (db) {
+            synchronized (this) {
+                checkpointScheduled = false;
+                dirtyBytes = 0;
+                versions.putAll(dirty);
+            }
+            for (String tableName : versions.keySet()) {
+                List<Object[]> rows = new ArrayList<>();
+                ITable table = db.getResidentTable(tableName);
+                if (table == null) {
+                    continue;
+                }
+                for (ITuple tuple : table.getTuples()) {
+                    rows.add(tuple.getValues().clone());
+                }
+                copies.put(table.getName(), rows);
+                schemas.put(table.getName(), table.getSchema());
+            }
+        }
+        for (Map.Entry<String, List<Object[]>> entry : copies.entrySet()) {
+            if (!IO.writeRows(entry.getKey(), schemas.get(entry.getKey()), entry.getValue(), folderName)) {
+                continue;
+            }
+            synchronized (this) {
+                String key = key(entry.getKey());
+                if (versions.get(key).equals(dirty.get(key))) {
+                    dirty.remove(key);
+                }
+                tablesWritten++;
+            }
+        }
+        synchronized (this) {
+            checkpoints++;
+        }
+    }
+
+    /**
+     * Runs a checkpoint in the background thread (an exception must not stop the next checkpoints)
+     */
+    private void runCheckpoint() {
+        try {
+            checkpoint();
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the background thread and writes the dirty tables one last time
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+    }
+
+    private static String key(String tableName) {
+        return tableName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Getters
+     */
+
+    public synchronized long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    public synchronized long getCheckpoints() {
+        return checkpoints;
+    }
+
+    public synchronized long getTablesWritten() {
+        return tablesWritten;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * An (immutable) column descriptor: the attribute name, its type and its index in the schema
+ * Descriptors are computed once by the schema so that the name:type strings are not split for every row
+ */
+public final class Column {
+    private final String name;
+    private final ColumnType type;
+    private final int index;
+
+    /**
+     * constructor
+     * @param name
+     * @param type
+     * @param index
+     */
+    public Column(String name, ColumnType type, int index) {
+        this.name = name;
+        this.type = type;
+        this.index = index;
+    }
+
+    /**
+     * Parses the name:type string of an attribute
+     * @param attribute
+     * @param index
+     * @return
+     */
+    public static Column parse(String attribute, int index) {
+        String[] parts = attribute.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid attribute: " + attribute);
+        }
+        return new Column(parts[0].trim(), ColumnType.fromName(parts[1].trim()), index);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ColumnType getType() {
+        return type;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + type.getTypeName();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * The attribute types supported by the schema (Integer, Double or String)
+ * Each type knows its java class and how to convert (parse) a value to that class
+ */
+public enum ColumnType {
+    STRING("String", String.class) {
+        @Override
+        public Object parse(String value) {
+            return value;
+        }
+    },
+    INTEGER("Integer", Integer.class) {
+        @Override
+        public Object parse(String value) {
+            return Integer.parseInt(value.trim());
+        }
+    },
+    DOUBLE("Double", Double.class) {
+        @Override
+        public Object parse(String value) {
+            return Double.parseDouble(value.trim());
+        }
+    };
+
+    private final String typeName;
+    private final Class<?> javaClass;
+
+    ColumnType(String typeName, Class<?> javaClass) {
+        this.typeName = typeName;
+        this.javaClass = javaClass;
+    }
+
+    /**
+     * Returns the type for the name used in the schema file ("Integer", "Double", "String")
+     * @param typeName
+     * @return
+     */
+    public static ColumnType fromName(String typeName) {
+        for (ColumnType type : values()) {
+            if (type.typeName.equals(typeName)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported type: " + typeName);
+    }
+
+    /**
+     * Parses the string form of a value (as read from a csv file or a query)
+     * @param value
+     * @return
+     */
+    public abstract Object parse(String value);
+
+    /**
+     * Converts the value to the java class of this type
+     * Values that already have the right class are returned as is (no re-parsing)
+     * @param value
+     * @return
+     */
+    public Object convert(Object value) {
+        if (javaClass.isInstance(value)) {
+            return value;
+        }
+        return parse(value.toString());
+    }
+
+    /**
+     * Returns the name of the type as used in the schema file
+     * @return
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * Returns the java class of the type
+     * @return
+     */
+    public Class<?> getJavaClass() {
+        return javaClass;
+    }
+}
@@ -1,6 +1,7 @@
-import com.sun.jdi.Value;
-
-import java.util.Map;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A condition is of the form operand1 operator operand2, e.g. sid = s1
@@ -9,6 +10,10 @@ public class Condition {
     private String operand1;
     private String operand2;
     private String operator;
+    private ISchema boundSchema;
+    private int boundIndex;
+    private Object boundOperand;
+    private Operator boundOperator;
 
     /**
      * constructor
@@ -35,6 +40,7 @@ public class Condition {
 
     public void setOperand1(String operand1) {
         this.operand1 = operand1;
+        this.boundSchema = null;
     }
 
     public String getOperand2() {
@@ -43,6 +49,7 @@ public class Condition {
 
     public void setOperand2(String operand2) {
         this.operand2 = operand2;
+        this.boundSchema = null;
     }
 
     public String getOperator() {
@@ -51,54 +58,126 @@ public class Condition {
 
     public void setOperator(String operator) {
         this.operator = operator;
+        this.boundSchema = null;
+    }
+
+    /**
+     * Returns true if a plan with this condition can be cached (it does not depend on the data of other tables)
+     * @return
+     */
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /**
+     * Compiles the condition (for the given schema) into a (ITuple)boolean method handle
+     * @param schema
+     * @return
+     * @throws InvalidQueryException
+     */
+    public MethodHandle compile(ISchema schema) throws InvalidQueryException {
+        bind(schema);
+        return QueryCompiler.compileComparison(boundIndex, schema.getColumn(boundIndex).getType(), boundOperator, boundOperand);
     }
 
+    /**
+     * Checks whether the tuple satisfies the condition
+     * The tuple is compared by the same filter kernels as a select, so both have the same comparison semantics
+     * @param tuple
+     * @param schema
+     * @return
+     * @throws InvalidQueryException
+     */
     public boolean checkCondition(ITuple tuple, ISchema schema) throws InvalidQueryException {
-        Integer index = null;
-        String type = null;
-        for (Map.Entry<Integer, String> entry: schema.getAttributes().entrySet()) {
-            String[] parts = entry.getValue().split(":");
-            String name = parts[0].trim();
-            if (operand1.equalsIgnoreCase(name)) {
-                type = parts[1].trim();
-                index = entry.getKey();
+        return select(Collections.singletonList(tuple), schema).length == 1;
+    }
+
+    /**
+     * Returns the indexes of the tuples (in the list) that satisfy the condition
+     *
+     * The tuples are filtered in batches: the attribute values of a batch of tuples are copied
+     * to a primitive array and compared with operand2 by a filter kernel (specialized for the type and operator)
+     * The tuples of an off heap table are compared in place (strings as UTF-8 bytes)
+     *
+     * @param tuples
+     * @param schema
+     * @return the selection vector (the indexes of the matching tuples, in order)
+     * @throws InvalidQueryException
+     */
+    public int[] select(List<ITuple> tuples, ISchema schema) throws InvalidQueryException {
+        bind(schema);
+        if (tuples instanceof OffHeapTable.Rows) {
+            OffHeapTable.Rows rows = (OffHeapTable.Rows) tuples;
+            return rows.getTable().select(rows.getFrom(), rows.getFrom() + rows.size(), boundIndex, boundOperator, boundOperand);
+        }
+        int size = tuples.size();
+        int[] sel = new int[size];
+        int count = 0;
+        int batch = Math.min(size, FilterKernels.BATCH_SIZE);
+        switch (schema.getColumn(boundIndex).getType()) {
+            case INTEGER: {
+                int[] values = new int[batch];
+                int constant = (Integer) boundOperand;
+                for (int base = 0; base < size; base += batch) {
+                    int n = Math.min(batch, size - base);
+                    for (int i = 0; i < n; i++) {
+                        values[i] = tuples.get(base + i).<Integer>getValue(boundIndex);
+                    }
+                    count = FilterKernels.selectInt(values, n, boundOperator, constant, base, sel, count);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double[] values = new double[batch];
+                double constant = (Double) boundOperand;
+                for (int base = 0; base < size; base += batch) {
+                    int n = Math.min(batch, size - base);
+                    for (int i = 0; i < n; i++) {
+                        values[i] = tuples.get(base + i).<Double>getValue(boundIndex);
+                    }
+                    count = FilterKernels.selectDouble(values, n, boundOperator, constant, base, sel, count);
+                }
                 break;
             }
+            default: {
+                String[] values = new String[batch];
+                String constant = (String) boundOperand;
+                for (int base = 0; base < size; base += batch) {
+                    int n = Math.min(batch, size - base);
+                    for (int i = 0; i < n; i++) {
+                        values[i] = tuples.get(base + i).getValue(boundIndex);
+                    }
+                    count = FilterKernels.selectString(values, n, boundOperator, constant, base, sel, count);
+                }
+                break;
+            }
+        }
+        return count == size ? sel : Arrays.copyOf(sel, count);
+    }
+
+    /**
+     * Resolves operand1 to a column of the schema, parses operand2 with the column type and parses the operator
+     * @param schema
+     * @throws InvalidQueryException
+     */
+    private void bind(ISchema schema) throws InvalidQueryException {
+        if (schema == boundSchema) {
+            return;
         }
-        if (index == null) {
+        int index = schema.indexOf(operand1);
+        if (index == -1) {
             throw new InvalidQueryException("Attribute not found in schema");
         }
-
-        switch (type) {
-            case "Integer":
-                int operandInt = Integer.parseInt(operand2);
-                return compare(tuple.getValue(index), operandInt);
-            case "Double":
-                double operandDouble = Double.parseDouble(operand2);
-                return compare(tuple.getValue(index), operandDouble);
-            case "String":
-                return compare(tuple.getValue(index), operand2);
-            default:
-                throw new InvalidQueryException("Unsupported type: " + type);
+        Object operand;
+        try {
+            operand = schema.getColumn(index).getType().parse(operand2);
         }
-    }
-
-    private <T extends Comparable<T>> boolean compare(T o1, T o2) throws InvalidQueryException {
-        switch (operator) {
-            case "=":
-                return o1.equals(o2);
-            case "!=":
-                return !o1.equals(o2);
-            case "<":
-                return o1.compareTo(o2) < 0;
-            case ">":
-                return o1.compareTo(o2) > 0;
-            case "<=":
-                return o1.compareTo(o2) <= 0;
-            case ">=":
-                return o1.compareTo(o2) >= 0;
-            default:
-                throw new InvalidQueryException("Invalid operator: " + operator);
+        catch (NumberFormatException e) {
+            throw new InvalidQueryException("Invalid value for " + operand1 + ": " + operand2);
         }
+        boundOperator = Operator.fromSymbol(operator);
+        boundIndex = index;
+        boundOperand = operand;
+        boundSchema = schema;
     }
 }
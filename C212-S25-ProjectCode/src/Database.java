@@ -1,30 +1,78 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The main database class
  * Database as a list of tables, list of schemas and a folder name where the database is stored
- * Database is stored (on the disk) in the form of three csv files and schema text file
+ * Database is stored (on the disk) in the form of a columnar snapshot file and a log file per table
+ * and schema text file (the tables are imported from their csv files the first time they are loaded)
  */
-class Database {
+class Database implements IDatabase {
+    private static final int PLAN_CACHE_SIZE = 256;
+    private static final long LOG_COMPACTION_BYTES = 1 << 16;
+    static final String VIEWS_FILE = "views.txt";
+    private static final Histogram PARSE_TIME = Metrics.histogram("parse");
+    private static final LongAdder PLAN_CACHE_HITS = Metrics.counter("plan.cache.hits");
+    private static final LongAdder PLAN_CACHE_MISSES = Metrics.counter("plan.cache.misses");
+    static final LongAdder ROWS_SCANNED = Metrics.counter("rows.scanned");
+    private static final LongAdder ROWS_RETURNED = Metrics.counter("rows.returned");
+    static final Pattern EXISTS_PATTERN = Pattern.compile("^(NOT\\s+)?EXISTS\\s*\\((.*)\\)$", Pattern.DOTALL);
+    static final Pattern IN_PATTERN = Pattern.compile("^(\\S+)\\s+(NOT\\s+)?IN\\s*\\((.*)\\)$", Pattern.DOTALL);
+
     private List<ITable> tables;
     private List<ISchema> schemas;
     private String folderName;
+    private TableCache cache;
+    private List<MaterializedView> views;
+    private Checkpointer checkpointer;
+    private Map<String, SelectPlan> plans;
+    private Map<String, BloomIndex> blooms;
+    private double bloomFalsePositiveRate;
+    private boolean offHeap;
+    private ReplicationPublisher publisher;
+
+    /**
+     * Constructor
+     * Creates a database without a memory budget (all the tables stay in memory)
+     * @param folderName
+     * @param schemaFileName
+     */
+    public Database(String folderName, String schemaFileName) {
+        this(folderName, schemaFileName, Long.MAX_VALUE);
+    }
 
     /**
      * Constructor
      * Creates the empty tables and schema lists
      * Reads the schema file to add schemas to the database
-     * Populates the database table (with the data read from the csv files)
+     * Populates the database table (with the data read from the snapshot files)
+     * Creates the materialized views of the views file
+     * When the tables go over the memory budget, the least recently used ones are evicted (and reloaded when needed)
      * @param folderName
      * @param schemaFileName
+     * @param memoryBudget the memory budget of the tables, in bytes
      */
-    public Database(String folderName, String schemaFileName) {
+    public Database(String folderName, String schemaFileName, long memoryBudget) {
         this.tables = new ArrayList<>();
         this.schemas = new ArrayList<>();
         this.folderName = folderName;
+        this.cache = new TableCache(memoryBudget);
+        this.views = new ArrayList<>();
+        this.blooms = new HashMap<>();
+        this.plans = new LinkedHashMap<String, SelectPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SelectPlan> eldest) {
+                return size() > PLAN_CACHE_SIZE;
+            }
+        };
 
         IO.readSchema(schemaFileName, folderName, this);
         populateDB();
+        loadViews();
     }
 
     /**
@@ -59,6 +107,127 @@ class Database {
         return schemas;
     }
 
+    /**
+     * Starts writing the modified tables to the disk in the background (instead of during the queries)
+     * The dirty tables are written every interval, or as soon as the modified bytes go over the threshold
+     * @param intervalMillis
+     * @param dirtyBytesThreshold
+     */
+    public synchronized void startCheckpointer(long intervalMillis, long dirtyBytesThreshold) {
+        if (checkpointer == null) {
+            checkpointer = new Checkpointer(this, folderName, intervalMillis, dirtyBytesThreshold);
+        }
+    }
+
+    /**
+     * Returns the checkpointer, or null if the tables are written during the queries
+     * @return
+     */
+    public synchronized Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * Starts publishing the changes of the tables to the replicas that connect to the given address and port
+     * and send the token
+     * @param bindAddress the address to listen on
+     * @param port the port (0 for any free port)
+     * @param token
+     * @return the publisher
+     * @throws IOException if the port cannot be opened
+     */
+    public synchronized ReplicationPublisher startPublisher(String bindAddress, int port, String token) throws IOException {
+        if (publisher == null) {
+            publisher = new ReplicationPublisher(this, bindAddress, port, token);
+        }
+        return publisher;
+    }
+
+    /**
+     * Returns the replication publisher, or null if the changes are not published
+     * @return
+     */
+    public synchronized ReplicationPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Closes the database: stops the publisher and the checkpointer (if any) and writes the dirty tables to the disk
+     */
+    public void close() {
+        Checkpointer c;
+        ReplicationPublisher p;
+        synchronized (this) {
+            c = checkpointer;
+            p = publisher;
+            checkpointer = null;
+            publisher = null;
+        }
+        if (p != null) {
+            p.close();
+        }
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    /**
+     * Enables the (per column and per block) Bloom filters of the tables
+     * The filters of the resident tables are built now, the filters of the other tables when they are loaded
+     * @param falsePositiveRate
+     */
+    public synchronized void enableBloomFilters(double falsePositiveRate) {
+        bloomFalsePositiveRate = falsePositiveRate;
+        blooms.clear();
+        for (int i = 0; i < schemas.size() && i < tables.size(); i++) {
+            ITable table = tables.get(i);
+            if (cache.isResident(table.getName()) && !isView(table.getName())) {
+                blooms.put(table.getName().toLowerCase(Locale.ROOT), new BloomIndex(table, falsePositiveRate));
+            }
+        }
+    }
+
+    /**
+     * Stores the tuples of the tables outside of the heap (see OffHeapTable)
+     * The resident tables are copied now, the other tables are read into off heap tables when they are loaded
+     * (materialized views stay on the heap), the rows keep their ids so the Bloom filters stay valid
+     */
+    public synchronized void enableOffHeapStorage() {
+        if (offHeap) {
+            return;
+        }
+        offHeap = true;
+        for (int i = 0; i < schemas.size() && i < tables.size(); i++) {
+            ITable table = tables.get(i);
+            if (!cache.isResident(table.getName()) || isView(table.getName())) {
+                continue;
+            }
+            ITable copy = IO.newTable(table.getName(), table.getSchema(), true);
+            for (ITuple tuple : table.getTuples()) {
+                copy.addTuple(tuple);
+            }
+            tables.set(i, copy);
+            cache.resize(copy);
+        }
+    }
+
+    /**
+     * Returns the Bloom filters of a table, or null if there are none
+     * @param tableName
+     * @return
+     */
+    public synchronized BloomIndex getBloomIndex(String tableName) {
+        return blooms.get(tableName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the table cache (the resident tables)
+     * @return
+     */
+    public TableCache getTableCache() {
+        return cache;
+    }
+
     /**
      * The list of tables in the database is initialized with empty tables in the constructor
      * An empty table has a name and an empty list of tuples
@@ -80,12 +249,471 @@ class Database {
      * Implements the following algorithm
      *
      * For each table in the db (tables are initially empty)
-     *   Get the table's data from the csv file (by calling the read table method)
-     *   Update the table (by calling the udpate table method)
+     *   Load the table (by calling the load table method)
      */
     public void populateDB() {
         for (int i = 0; i < tables.size(); i++) {
-            updateTable(IO.readTable(tables.get(i).getName(), schemas.get(i), folderName));
+            loadTable(i);
+        }
+    }
+
+    /**
+     * Creates the materialized views defined in the views file (in the order they were created)
+     * A view that cannot be created anymore (e.g. its base table was removed from the schema) is skipped
+     */
+    private void loadViews() {
+        for (String query : IO.readViews(VIEWS_FILE, folderName)) {
+            try {
+                addView(query);
+            }
+            catch (InvalidQueryException e) {
+                System.err.println("Cannot create the view " + query + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the table with the given name (ignoring case)
+     * If the table was evicted, it is reloaded from the disk first
+     * @param tableName
+     * @return
+     * @throws InvalidQueryException if there is no such table
+     */
+    private ITable getTable(String tableName) throws InvalidQueryException {
+        for (int i = 0; i < tables.size(); i++) {
+            if (tables.get(i).getName().equalsIgnoreCase(tableName)) {
+                if (!cache.touch(tableName)) {
+                    loadTable(i);
+                }
+                return tables.get(i);
+            }
+        }
+        throw new InvalidQueryException("Table not found: " + tableName);
+    }
+
+    /**
+     * Returns the table with the given name if it is resident (loaded in memory), null otherwise
+     * @param tableName
+     * @return
+     */
+    synchronized ITable getResidentTable(String tableName) {
+        if (!cache.isResident(tableName)) {
+            return null;
+        }
+        for (ITable t : tables) {
+            if (t.getName().equalsIgnoreCase(tableName)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a modified table to the disk, or marks it dirty if the checkpointer is running
+     * @param table
+     * @param bytes the (estimated) number of modified bytes
+     */
+    private void writeTable(ITable table, long bytes) {
+        if (checkpointer != null) {
+            checkpointer.markDirty(table.getName(), bytes);
+        }
+        else {
+            IO.writeTable(table, folderName);
+        }
+    }
+
+    /**
+     * Writes the table (which clears its log) if its log file is larger than its snapshot file,
+     * so loading the table does not take longer than reading the snapshot twice
+     * (small logs are kept, the snapshot of a small table is smaller than a few log lines)
+     * @param table
+     * @param logLength the length of the log file
+     */
+    private void compactLog(ITable table, long logLength) {
+        long snapshotLength = new File(folderName + "/" + table.getName() + ".qes").length();
+        if (logLength > Math.max(snapshotLength, LOG_COMPACTION_BYTES)) {
+            writeTable(table, logLength);
+        }
+    }
+
+    /**
+     * Returns the table with the given name (ignoring case) without loading it
+     * (an evicted table is returned as an empty table, it can only be used for its name and schema)
+     * @param tableName
+     * @return
+     * @throws InvalidQueryException if there is no such table
+     */
+    private ITable findTable(String tableName) throws InvalidQueryException {
+        for (ITable t : tables) {
+            if (t.getName().equalsIgnoreCase(tableName)) {
+                return t;
+            }
+        }
+        throw new InvalidQueryException("Table not found: " + tableName);
+    }
+
+    /**
+     * Parses a where clause (on the given table)
+     *
+     * The where clause is one of
+     *   attribute operator value (e.g. sid = s1)
+     *   attribute [NOT] IN (value, ...)
+     *   attribute [NOT] IN (SELECT attribute FROM ...)
+     *   [NOT] EXISTS (SELECT ... FROM ... [WHERE ...])
+     *
+     * Implements the following algorithm
+     *
+     * If the clause is an EXISTS clause
+     *   Parse the subquery to get its table and where clause
+     *   If the subquery where clause is (inner attribute = table.attribute)
+     *     Select the inner attribute values from the subquery table
+     *     Return a semi join condition on the attribute with the values
+     *   Else
+     *     Run the subquery
+     *     Return a condition that is true (or false) for every tuple
+     * If the clause is an IN clause
+     *   If the list is a subquery
+     *     Run the subquery to get the values
+     *   Else
+     *     Parse the values of the list
+     *   Return a semi join condition on the attribute with the values
+     * Return a condition (attribute operator value)
+     *
+     * @param whereClause
+     * @param table
+     * @return
+     * @throws InvalidQueryException
+     */
+    private Condition parseCondition(String whereClause, ITable table) throws InvalidQueryException {
+        String clause = whereClause.trim();
+        Matcher exists = EXISTS_PATTERN.matcher(clause);
+        if (exists.matches()) {
+            return parseExists(exists.group(2).trim(), exists.group(1) != null, table);
+        }
+        Matcher in = IN_PATTERN.matcher(clause);
+        if (in.matches()) {
+            return parseIn(in.group(1), in.group(3).trim(), in.group(2) != null, table.getSchema());
+        }
+        String[] conditionStr = clause.split("\\s+");
+        if (conditionStr.length < 3) {
+            throw new InvalidQueryException("Invalid WHERE clause.");
+        }
+        return new Condition(conditionStr[0], conditionStr[2], conditionStr[1]);
+    }
+
+    /**
+     * Parses an attribute [NOT] IN (list) clause, the list is a list of values or a subquery
+     * @param attribute
+     * @param list
+     * @param anti
+     * @param schema
+     * @return
+     * @throws InvalidQueryException
+     */
+    private Condition parseIn(String attribute, String list, boolean anti, ISchema schema) throws InvalidQueryException {
+        int index = schema.indexOf(attribute);
+        if (index == -1) {
+            throw new InvalidQueryException("Attribute not found in schema");
+        }
+        ColumnType type = schema.getColumn(index).getType();
+        Set<Object> keys = new HashSet<>();
+        if (list.startsWith("SELECT")) {
+            ITable result = selectData(list);
+            if (result.getSchema().size() != 1) {
+                throw new InvalidQueryException("Subquery must select exactly one attribute.");
+            }
+            addKeys(keys, result, 0, type);
+            return SemiJoinCondition.in(attribute, keys, anti, true);
+        }
+        for (String value : splitValues(list)) {
+            try {
+                keys.add(type.parse(value));
+            }
+            catch (NumberFormatException e) {
+                throw new InvalidQueryException("Invalid value for " + attribute + ": " + value);
+            }
+        }
+        return SemiJoinCondition.in(attribute, keys, anti, false);
+    }
+
+    /**
+     * Splits the values of an IN list
+     * A value in quotes may contain commas, and a quote in it is written as two quotes ('O''Brien, Pat')
+     * The quotes around a value that is not in quotes as a whole are removed
+     * @param list
+     * @return
+     */
+    static List<String> splitValues(String list) {
+        List<String> values = new ArrayList<>();
+        if (list.trim().isEmpty()) {
+            return values;
+        }
+        int i = 0;
+        while (true) {
+            while (i < list.length() && Character.isWhitespace(list.charAt(i))) {
+                i++;
+            }
+            if (i < list.length() && list.charAt(i) == '\'') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (i < list.length()) {
+                    char c = list.charAt(i);
+                    if (c == '\'' && i + 1 < list.length() && list.charAt(i + 1) == '\'') {
+                        value.append(c);
+                        i += 2;
+                        continue;
+                    }
+                    if (c == '\'') {
+                        int next = i + 1;
+                        while (next < list.length() && Character.isWhitespace(list.charAt(next))) {
+                            next++;
+                        }
+                        if (next == list.length() || list.charAt(next) == ',') {
+                            i = next;
+                            break;
+                        }
+                    }
+                    value.append(c);
+                    i++;
+                }
+                values.add(value.toString());
+            }
+            else {
+                int comma = list.indexOf(',', i);
+                int end = comma == -1 ? list.length() : comma;
+                values.add(list.substring(i, end).trim().replaceAll("^'+|'+$", ""));
+                i = end;
+            }
+            if (i >= list.length()) {
+                return values;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Quotes a value for an IN list (see splitValues)
+     * @param value
+     * @return
+     */
+    static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Parses a [NOT] EXISTS (subquery) clause on the given (outer) table
+     * @param subquery
+     * @param anti
+     * @param table
+     * @return
+     * @throws InvalidQueryException
+     */
+    private Condition parseExists(String subquery, boolean anti, ITable table) throws InvalidQueryException {
+        if (!subquery.startsWith("SELECT")) {
+            throw new InvalidQueryException("Invalid EXISTS subquery.");
+        }
+        int fromIndex = subquery.indexOf("FROM");
+        int whereIndex = subquery.indexOf("WHERE");
+        if (fromIndex != -1 && whereIndex > fromIndex) {
+            String innerTableName = subquery.substring(fromIndex + 4, whereIndex).trim();
+            String[] conditionStr = subquery.substring(whereIndex + 5).trim().split("\\s+");
+            if (conditionStr.length == 3 && conditionStr[1].equals("=")) {
+                String outerPrefix = table.getName().toLowerCase(Locale.ROOT) + ".";
+                String left = conditionStr[0];
+                String right = conditionStr[2];
+                if (left.toLowerCase(Locale.ROOT).startsWith(outerPrefix)) {
+                    String swap = left;
+                    left = right;
+                    right = swap;
+                }
+                if (right.toLowerCase(Locale.ROOT).startsWith(outerPrefix)) {
+                    String outerAttribute = right.substring(outerPrefix.length());
+                    String innerAttribute = left;
+                    if (innerAttribute.toLowerCase(Locale.ROOT).startsWith(innerTableName.toLowerCase(Locale.ROOT) + ".")) {
+                        innerAttribute = innerAttribute.substring(innerTableName.length() + 1);
+                    }
+                    return parseIn(outerAttribute, "SELECT " + innerAttribute + " FROM " + innerTableName, anti, table.getSchema());
+                }
+            }
+        }
+        return SemiJoinCondition.exists(!selectData(subquery).getTuples().isEmpty(), anti);
+    }
+
+    /**
+     * Adds the values of a column of the table (converted to the given type) to the set of keys
+     * Values that cannot be converted are skipped (they cannot be equal to any value of that type)
+     */
+    private static void addKeys(Set<Object> keys, ITable table, int index, ColumnType type) {
+        for (ITuple tuple : table.getTuples()) {
+            try {
+                keys.add(type.convert(tuple.getValue(index)));
+            }
+            catch (NumberFormatException e) {
+                // not a value of the attribute type
+            }
+        }
+    }
+
+    /**
+     * Returns the (base) table with the given name, for an insert, update or delete query
+     * @param tableName
+     * @return
+     * @throws InvalidQueryException if there is no such table or if it is a materialized view
+     */
+    private ITable getBaseTable(String tableName) throws InvalidQueryException {
+        if (isView(tableName)) {
+            throw new InvalidQueryException("Cannot modify materialized view: " + tableName);
+        }
+        return getTable(tableName);
+    }
+
+    /**
+     * Returns true if the table with the given name is a materialized view
+     * @param tableName
+     * @return
+     */
+    private boolean isView(String tableName) {
+        for (MaterializedView view : views) {
+            if (view.getTable().getName().equalsIgnoreCase(tableName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the indexes of the tuples of the table that satisfy the condition (all of them if there is no condition)
+     * The Bloom filters of the table (if any) are used to skip the rows that cannot match an equality
+     * @param table
+     * @param condition
+     * @return the selection vector
+     * @throws InvalidQueryException
+     */
+    private int[] selectRows(ITable table, Condition condition) throws InvalidQueryException {
+        List<ITuple> tuples = table.getTuples();
+        if (condition == null) {
+            ROWS_SCANNED.add(tuples.size());
+            int[] sel = new int[tuples.size()];
+            for (int i = 0; i < sel.length; i++) {
+                sel[i] = i;
+            }
+            return sel;
+        }
+        int[] sel = bloomSelect(table, condition);
+        if (sel != null) {
+            return sel;
+        }
+        ROWS_SCANNED.add(tuples.size());
+        return condition.select(tuples, table.getSchema());
+    }
+
+    /**
+     * Returns the indexes of the tuples of the table that match the (compiled) where clause condition of the plan
+     * The Bloom filters of the table (if any) are used to skip the rows that cannot match an equality
+     * @param table
+     * @param plan
+     * @return the selection vector
+     * @throws InvalidQueryException
+     */
+    private int[] runPlan(ITable table, SelectPlan plan) throws InvalidQueryException {
+        if (plan.getCondition() != null) {
+            int[] sel = bloomSelect(table, plan.getCondition());
+            if (sel != null) {
+                return sel;
+            }
+        }
+        ROWS_SCANNED.add(table.getTuples().size());
+        return plan.select(table.getTuples());
+    }
+
+    /**
+     * Returns the indexes of the tuples of the table that satisfy the condition, found with the Bloom filters of the table,
+     * or null if the table has no Bloom filter for the condition
+     * @param table
+     * @param condition
+     * @return
+     * @throws InvalidQueryException
+     */
+    private int[] bloomSelect(ITable table, Condition condition) throws InvalidQueryException {
+        BloomIndex bloom = blooms.get(table.getName().toLowerCase(Locale.ROOT));
+        return bloom == null ? null : bloom.select(condition, table);
+    }
+
+    /**
+     * Returns the materialized views defined on the given base table
+     * @param tableName
+     * @return
+     */
+    private List<MaterializedView> getViews(String tableName) {
+        List<MaterializedView> result = new ArrayList<>();
+        for (MaterializedView view : views) {
+            if (view.getBaseTableName().equalsIgnoreCase(tableName)) {
+                result.add(view);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the tuples inserted in a table (or in a view) to the views defined on it,
+     * and the tuples added to each view to the views defined on that view
+     * @param tableName
+     * @param tuples
+     * @throws InvalidQueryException
+     */
+    private void viewsInserted(String tableName, List<ITuple> tuples) throws InvalidQueryException {
+        for (MaterializedView view : getViews(tableName)) {
+            List<ITuple> added = view.insert(tuples);
+            if (!added.isEmpty()) {
+                viewsInserted(view.getTable().getName(), added);
+            }
+        }
+    }
+
+    /**
+     * Applies the tuples deleted from a table (or from a view) to the views defined on it,
+     * and the tuples removed from each view to the views defined on that view
+     * @param tableName
+     * @param tuples
+     * @throws InvalidQueryException
+     */
+    private void viewsDeleted(String tableName, List<ITuple> tuples) throws InvalidQueryException {
+        for (MaterializedView view : getViews(tableName)) {
+            List<ITuple> removed = view.delete(tuples);
+            if (!removed.isEmpty()) {
+                viewsDeleted(view.getTable().getName(), removed);
+            }
+        }
+    }
+
+    /**
+     * Loads a table (at the given index) from the disk and evicts the least recently used tables
+     * if the memory budget is exceeded
+     *
+     * Implements the following algorithm
+     *
+     * Get the table's data from the snapshot or csv file (by calling the load table method)
+     * Update the table (by calling the update table method)
+     * For each table chosen for eviction by the cache (dirty tables are not evicted)
+     *   Replace the table with an empty table
+     *
+     * @param index
+     */
+    private void loadTable(int index) {
+        ITable table = IO.loadTable(tables.get(index).getName(), schemas.get(index), folderName, offHeap);
+        updateTable(table);
+        cache.loaded(table);
+        if (bloomFalsePositiveRate > 0) {
+            blooms.put(table.getName().toLowerCase(Locale.ROOT), new BloomIndex(table, bloomFalsePositiveRate));
+        }
+        Set<String> busy = checkpointer == null ? Collections.emptySet() : checkpointer.getDirtyTables();
+        for (String victim : cache.evict(table.getName(), busy)) {
+            for (int i = 0; i < tables.size(); i++) {
+                if (tables.get(i).getName().equalsIgnoreCase(victim)) {
+                    blooms.remove(victim);
+                    tables.set(i, new Table(tables.get(i).getName(), schemas.get(i)));
+                }
+            }
         }
     }
 
@@ -101,13 +729,17 @@ class Database {
      *   Exit
      * Create a new tuple with the schema of the table
      * Set the tuple values to the values from the query
-     * Open the file corresponding to the table name
-     * Append the tuple values (as comma separated values) to the end of the file
+     * If the checkpointer is running
+     *   Mark the table dirty (the checkpointer writes it)
+     * Else
+     *   Append the tuple values to the table's log file
+     *   If the log file is larger than the snapshot file
+     *     Write the table to the file, this clears the log
      *
      * @param query
      * @throws InvalidQueryException
      */
-    public void insertData(String query) throws InvalidQueryException {
+    public synchronized void insertData(String query) throws InvalidQueryException {
         query = query.trim();
 
         if (!query.startsWith("INSERT INTO")) {
@@ -137,38 +769,53 @@ class Database {
             throw new InvalidQueryException("Mismatch between attributes and values.");
         }
 
-        ITable table = null;
-        for (ITable t : tables) {
-            if (t.getName().equalsIgnoreCase(tableName)) {
-                table = t;
-                break;
-            }
-        }
-        if (table == null) {
-            throw new InvalidQueryException("Table not found: " + tableName);
-        }
+        ITable table = getBaseTable(tableName);
         ISchema schema = table.getSchema();
         Tuple tuple = new Tuple(schema);
-        Object[] tupleValues = new Object[schema.getAttributes().size()];
+        Object[] tupleValues = new Object[schema.size()];
         for (int i = 0; i < attributes.length; i++) {
             String attr = attributes[i].trim();
             String value = values[i].trim().replaceAll("^'+|'+$", "");
-            boolean found = false;
-            for (Map.Entry<Integer, String> entry : schema.getAttributes().entrySet()) {
-                String attrName = entry.getValue().split(":")[0];
-                if (attrName.equalsIgnoreCase(attr)) {
-                    tupleValues[entry.getKey()] = value;
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
+            int index = schema.indexOf(attr);
+            if (index == -1) {
                 throw new InvalidQueryException("Attribute not found: " + attr);
             }
+            tupleValues[index] = value;
+        }
+        try {
+            tuple.setValues(tupleValues);
         }
-        tuple.setValues(tupleValues);
+        catch (NumberFormatException | NullPointerException e) {
+            throw new InvalidQueryException("Invalid or missing values for table " + table.getName());
+        }
+        insertTuple(table, tuple);
+    }
+
+    /**
+     * Adds the tuple to the table, to the views and Bloom filters of the table, and appends it to the log file
+     * (or marks the table dirty if the checkpointer is running)
+     * @param table
+     * @param tuple
+     * @throws InvalidQueryException
+     */
+    private void insertTuple(ITable table, ITuple tuple) throws InvalidQueryException {
         table.addTuple(tuple);
-        IO.writeTuple(table.getName(), tuple.getValues(), folderName);
+        BloomIndex bloom = blooms.get(table.getName().toLowerCase(Locale.ROOT));
+        if (bloom != null) {
+            bloom.inserted(table);
+        }
+        viewsInserted(table.getName(), Collections.singletonList(tuple));
+        long size = TableCache.estimateSize(tuple);
+        cache.grow(table.getName(), size);
+        if (publisher != null) {
+            publisher.inserted(table.getName(), tuple.getValues());
+        }
+        if (checkpointer != null) {
+            checkpointer.markDirty(table.getName(), size);
+        }
+        else {
+            compactLog(table, IO.writeTuple(table.getName(), tuple.getValues(), folderName));
+        }
     }
 
     /**
@@ -186,29 +833,83 @@ class Database {
      *
      * Implements the following algorithm
      *
-     * Parse the query to get the select, from, where and order by clauses and the attribute and table names and condition
+     * Get the (compiled) plan of the query from the plan cache
+     * If the query is not in the cache
+     *   Parse the query to get the select, from, where and order by clauses and the attribute and table names and condition
+     *   Add the plan to the cache
      * If the query is not valid
      *   Throw an invalid query exception
      *   Exit
      * Create a new results schema based with the attributes from the select clause
-     * Create a new result table
-     * For each tuple in the table
-     *   If the tuple matches the where clause condition(s)
-     *     Create a new results tuple using the result schema
-     *     Set the results tuple values to the current tuple corresponding values
-     *     Add the results tuple to the result table
-     * Return results table
+     * Map each attribute of the results schema to its index in the table schema
+     * Filter the table with the compiled where clause condition to get the selection vector
+     * Return a results table view (over the table) made of the selection vector and the attribute map
      *
+     * The values are not copied: they are read from the table when the results are printed
      *
+     *
+     * @param query
+     * @return
+     * @throws InvalidQueryException
+     */
+    public synchronized ITable selectData(String query) throws InvalidQueryException {
+        SelectPlan plan = getPlan(query);
+        ITable table = getTable(plan.getTableName());
+
+        int[] rowIds = runPlan(table, plan);
+        ROWS_RETURNED.add(rowIds.length);
+        return new TableView("Res", plan.getResultSchema(), table, plan.getColumnMap(), rowIds, rowIds.length);
+    }
+
+    /**
+     * Selects data from a table based upon the select query and copies the results,
+     * so they stay valid when the table is modified (e.g. by another thread) after the lock is released
+     * @param query
+     * @return
+     * @throws InvalidQueryException
+     */
+    public synchronized ITable selectCopy(String query) throws InvalidQueryException {
+        SelectPlan plan = getPlan(query);
+        ITable table = getTable(plan.getTableName());
+
+        int[] rowIds = runPlan(table, plan);
+        ROWS_RETURNED.add(rowIds.length);
+        return plan.materialize("Res", table.getTuples(), rowIds);
+    }
+
+    /**
+     * Returns the (compiled) plan of the select query, from the plan cache or parsed and added to the cache
      * @param query
      * @return
      * @throws InvalidQueryException
      */
-    public ITable selectData(String query) throws InvalidQueryException {
+    private SelectPlan getPlan(String query) throws InvalidQueryException {
+        SelectPlan plan = plans.get(query);
+        if (plan == null) {
+            PLAN_CACHE_MISSES.increment();
+            long start = System.nanoTime();
+            plan = parseSelect(query);
+            PARSE_TIME.recordSince(start);
+            if (plan.getCondition() == null || plan.getCondition().isCacheable()) {
+                plans.put(query, plan);
+            }
+        }
+        else {
+            PLAN_CACHE_HITS.increment();
+        }
+        return plan;
+    }
+
+    /**
+     * Parses a select query (and checks it is valid)
+     * @param query
+     * @return
+     * @throws InvalidQueryException
+     */
+    private SelectPlan parseSelect(String query) throws InvalidQueryException {
         if (!query.startsWith("SELECT")) {
             throw new InvalidQueryException("Not an select query.");
         }
-
         query = query.substring(6).trim();
 
         int fromIndex = query.indexOf("FROM");
@@ -224,7 +925,7 @@ class Database {
         query = query.substring(fromIndex + 4).trim();
 
         String tableName = null;
-        ITable table = null;
+        Condition condition = null;
 
         int whereIndex = query.indexOf("WHERE");
         if (whereIndex == 0) {
@@ -233,74 +934,172 @@ class Database {
 
         if (whereIndex == -1) {
             tableName = query;
-            for (ITable t: tables) {
-                if (t.getName().equalsIgnoreCase(tableName)) {
-                    table = t;
-                    break;
-                }
+        }
+        else {
+            tableName = query.substring(0, whereIndex).trim();
+        }
+        ITable table = findTable(tableName);
+        ISchema schema = table.getSchema();
+        if (whereIndex != -1) {
+            condition = parseCondition(query.substring(whereIndex + 5), table);
+        }
+        int[] colIndexes = new int[attributes.length];
+        Map<Integer, String> attrForSchema = new HashMap<>();
+        for (int i = 0; i < attributes.length; i++) {
+            colIndexes[i] = schema.indexOf(attributes[i]);
+            if (colIndexes[i] == -1) {
+                throw new InvalidQueryException("Attribute " + attributes[i] + " not found in table.");
+            }
+            attrForSchema.put(i, schema.getColumn(colIndexes[i]).toString());
+        }
+        ISchema resSchema = new Schema(attrForSchema);
+
+        return new SelectPlan(table.getName(), schema, resSchema, colIndexes, condition);
+    }
+
+    /**
+     * Updates data in a table based upon the update query
+     * If the query is invalid throws an InvalidQueryException
+     *
+     * Implements the following algorithm
+     *
+     * Parse the query to get the table name, the set clause and the where clause
+     * Parse the set clause to get the attribute name(s) and value(s)
+     * If the query in not valid
+     *   Throw an invalid query exception
+     *   Exit
+     * For each tuple in the table
+     *   If the where clause condition (if present) is true
+     *     Set the tuple values to the values from the set clause
+     * If the checkpointer is running
+     *   Mark the table dirty (the checkpointer writes it)
+     * Else
+     *   Append the updated tuples (with their index) to the table's log file
+     *   If the log file is larger than the snapshot file
+     *     Write the table to the file, this clears the log
+     *
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public synchronized void updateData(String query) throws InvalidQueryException {
+        query = query.trim();
+        if (!query.startsWith("UPDATE")) {
+            throw new InvalidQueryException("Not an update query.");
+        }
+
+        query = query.substring(6).trim();
+
+        int setIndex = query.indexOf("SET");
+        if (setIndex <= 0) {
+            throw new InvalidQueryException("Missing SET.");
+        }
+        String tableName = query.substring(0, setIndex).trim();
+        String setClause = query.substring(setIndex + 3).trim();
+        String whereClause = "";
+        int whereIndex = setClause.indexOf("WHERE");
+        if (whereIndex != -1) {
+            whereClause = setClause.substring(whereIndex + 5).trim();
+            setClause = setClause.substring(0, whereIndex).trim();
+        }
+        if (setClause.isEmpty()) {
+            throw new InvalidQueryException("Missing SET attributes.");
+        }
+
+        if (isView(tableName)) {
+            throw new InvalidQueryException("Cannot modify materialized view: " + tableName);
+        }
+        ISchema schema = findTable(tableName).getSchema();
+        String[] assignments = setClause.split(",");
+        int[] indexes = new int[assignments.length];
+        Object[] values = new Object[assignments.length];
+        for (int i = 0; i < assignments.length; i++) {
+            int equalsIndex = assignments[i].indexOf('=');
+            if (equalsIndex == -1) {
+                throw new InvalidQueryException("Invalid SET clause: " + assignments[i].trim());
             }
-            if (table == null) {
-                throw new InvalidQueryException("Table not found.");
+            String attr = assignments[i].substring(0, equalsIndex).trim();
+            String value = assignments[i].substring(equalsIndex + 1).trim().replaceAll("^'+|'+$", "");
+            indexes[i] = schema.indexOf(attr);
+            if (indexes[i] == -1) {
+                throw new InvalidQueryException("Attribute not found: " + attr);
             }
-            Map<Integer, String> attrForSchema = new HashMap<>();
-            for (int i = 0; i < attributes.length; i++) {
-                if (!table.getSchema().getNames().containsValue(attributes[i])) {
-                    throw new InvalidQueryException("Attribute " + attributes[i] + " not found in table.");
-                }
-                int colIndex = table.getSchema().getKeys().get(attributes[i]);
-                String type = table.getSchema().getType(colIndex);
-                attrForSchema.put(i, attributes[i] + ":" + type);
-            }
-            ISchema resSchema = new Schema(attrForSchema);
-            ITable resTable = new Table("Res", resSchema);
-            for (ITuple t: table.getTuples()) {
-                ITuple resTuple = new Tuple(resSchema);
-                for (int i = 0; i < attributes.length; i++) {
-                    int valueIndex = table.getSchema().getKeys().get(attributes[i]);
-                    resTuple.setValue(i, t.getValue(valueIndex));
-                }
-                resTable.addTuple(resTuple);
+            try {
+                values[i] = schema.getColumn(indexes[i]).getType().parse(value);
+            }
+            catch (NumberFormatException e) {
+                throw new InvalidQueryException("Invalid value for " + attr + ": " + value);
             }
-            return resTable;
         }
-        else {
-            tableName = query.substring(0, whereIndex).trim();
-            String whereAttr = query.substring(whereIndex + 5).trim();
-            String[] whereAttrs = whereAttr.split("\\s+");
-            for (ITable t : tables) {
-                if (t.getName().equalsIgnoreCase(tableName)) {
-                    table = t;
-                    break;
-                }
+
+        Condition condition = null;
+        if (!whereClause.isEmpty()) {
+            condition = parseCondition(whereClause, findTable(tableName));
+        }
+        ITable table = getBaseTable(tableName);
+        int[] sel = selectRows(table, condition);
+        List<ITuple> tuples = table.getTuples();
+        List<Object[]> rows = new ArrayList<>(sel.length);
+        for (int r : sel) {
+            Object[] row = tuples.get(r).getValues().clone();
+            for (int i = 0; i < indexes.length; i++) {
+                row[indexes[i]] = values[i];
             }
-            if (table == null) {
-                throw new InvalidQueryException("Table not found.");
+            rows.add(row);
+        }
+        updateRows(table, sel, rows);
+    }
+
+    /**
+     * Sets the values of the rows (at the given indexes) of the table, updates the views and Bloom filters of the table
+     * and writes the rows to the table's log file (or marks the table dirty if the checkpointer is running)
+     * @param table
+     * @param sel the indexes of the rows
+     * @param rows the new values of the rows
+     * @throws InvalidQueryException
+     */
+    private void updateRows(ITable table, int[] sel, List<Object[]> rows) throws InvalidQueryException {
+        if (sel.length == 0) {
+            return;
+        }
+        ISchema schema = table.getSchema();
+        List<MaterializedView> tableViews = getViews(table.getName());
+        List<ITuple> tuples = table.getTuples();
+        List<Integer> rowIds = new ArrayList<>(sel.length);
+        List<ITuple> oldTuples = new ArrayList<>();
+        List<ITuple> newTuples = new ArrayList<>();
+        long sizeDelta = 0;
+        long updatedBytes = 0;
+        BloomIndex bloom = blooms.get(table.getName().toLowerCase(Locale.ROOT));
+        for (int k = 0; k < sel.length; k++) {
+            int r = sel[k];
+            ITuple t = tuples.get(r);
+            if (!tableViews.isEmpty()) {
+                ITuple old = new Tuple(schema);
+                old.setValues(t.getValues().clone());
+                oldTuples.add(old);
+                newTuples.add(t);
             }
-            Map<Integer, String> attrForSchema = new HashMap<>();
-            for (int i = 0; i < attributes.length; i++) {
-                if (!table.getSchema().getNames().containsValue(attributes[i])) {
-                    throw new InvalidQueryException("Attribute " + attributes[i] + " not found in table.");
-                }
-                int colIndex = table.getSchema().getKeys().get(attributes[i]);
-                String type = table.getSchema().getType(colIndex);
-                attrForSchema.put(i, attributes[i] + ":" + type);
-
-            }
-            ISchema resSchema = new Schema(attrForSchema);
-            ITable resTable = new Table("Res", resSchema);
-            for (ITuple t: table.getTuples()) {
-                ITuple resTuple = new Tuple(resSchema);
-                Condition condition = new Condition(whereAttrs[0], whereAttrs[2], whereAttrs[1]);
-                if (condition.checkCondition(t, table.getSchema())) {
-                    for (int i = 0; i < attributes.length; i++) {
-                        int valueIndex = table.getSchema().getKeys().get(attributes[i]);
-                        resTuple.setValue(i, t.getValue(valueIndex));
-                    }
-                    resTable.addTuple(resTuple);
-                }
+            long oldSize = TableCache.estimateSize(t);
+            t.setValues(rows.get(k));
+            long newSize = TableCache.estimateSize(t);
+            sizeDelta += newSize - oldSize;
+            updatedBytes += newSize;
+            if (bloom != null) {
+                bloom.add(r, t);
             }
-            return resTable;
+            rowIds.add(r);
         }
+        viewsDeleted(table.getName(), oldTuples);
+        viewsInserted(table.getName(), newTuples);
+        cache.grow(table.getName(), sizeDelta);
+        if (publisher != null) {
+            publisher.updated(table.getName(), sel, rows);
+        }
+        if (checkpointer != null) {
+            checkpointer.markDirty(table.getName(), updatedBytes);
+            return;
+        }
+        compactLog(table, IO.writeLog(table.getName(), rowIds, rows, folderName));
     }
 
     /**
@@ -322,12 +1121,12 @@ class Database {
      * Else
      *   For each tuple in the table
      *     Remove the tuple from the table
-     * Write the table to the file
+     * Write the table to the file (or mark it dirty if the checkpointer is running)
      *
      * @param query
      * @throws InvalidQueryException
      */
-    public void deleteData(String query) throws InvalidQueryException {
+    public synchronized void deleteData(String query) throws InvalidQueryException {
         if (!query.startsWith("DELETE FROM")) {
             throw new InvalidQueryException("Not an delete query.");
         }
@@ -335,47 +1134,197 @@ class Database {
         query = query.substring(11).trim();
 
         int whereIndex = query.indexOf("WHERE");
-        ITable table = null;
+        ITable table;
+        int[] sel;
         if (whereIndex == -1) {
-            String fromClause = query.trim();
-            for (ITable t: tables) {
-                if (t.getName().equalsIgnoreCase(fromClause)) {
-                    table = t;
-                    break;
-                }
-            }
-            if (table == null) {
-                throw new InvalidQueryException("Table not found.");
-            }
-            table.getTuples().clear();
-            return;
+            table = getBaseTable(query.trim());
+            sel = selectRows(table, null);
         }
         else {
             String fromClause = query.substring(0, whereIndex).trim();
-            String whereClause = query.substring(whereIndex + 6).trim();
-            for (ITable t : tables) {
-                if (t.getName().equalsIgnoreCase(fromClause)) {
-                    table = t;
-                    break;
-                }
+            String whereClause = query.substring(whereIndex + 5).trim();
+            Condition condition = null;
+            if (!whereClause.isEmpty()) {
+                condition = parseCondition(whereClause, findTable(fromClause));
             }
-            if (table == null) {
-                throw new InvalidQueryException("Table not found.");
+            table = getBaseTable(fromClause);
+            sel = condition == null ? new int[0] : selectRows(table, condition);
+        }
+        deleteRows(table, sel);
+    }
+
+    /**
+     * Removes the rows (at the given indexes) from the table, updates the views and Bloom filters of the table
+     * and writes the table (or marks it dirty if the checkpointer is running)
+     * @param table
+     * @param sel the indexes of the rows, in increasing order
+     * @throws InvalidQueryException
+     */
+    private void deleteRows(ITable table, int[] sel) throws InvalidQueryException {
+        if (sel.length == 0) {
+            return;
+        }
+        List<ITuple> tuples = table.getTuples();
+        List<ITuple> toDelete = new ArrayList<>(sel.length);
+        for (int r : sel) {
+            toDelete.add(tuples.get(r));
+        }
+        long bytes = 0;
+        for (ITuple t : toDelete) {
+            bytes += TableCache.estimateSize(t);
+        }
+        viewsDeleted(table.getName(), toDelete);
+        int kept = 0;
+        for (int r = 0, m = 0; r < tuples.size(); r++) {
+            if (m < sel.length && sel[m] == r) {
+                m++;
             }
-            if (!whereClause.isEmpty()) {
-                String[] conditionStr = whereClause.split("\\s+");
-                Condition condition = new Condition(conditionStr[0], conditionStr[2], conditionStr[1]);
-                List<ITuple> toDelete = new ArrayList<>();
-                for (ITuple t : table.getTuples()) {
-                    if (condition.checkCondition(t, table.getSchema())) {
-                        toDelete.add(t);
-                    }
-                }
-                table.getTuples().removeAll(toDelete);
+            else {
+                tuples.set(kept++, tuples.get(r));
             }
         }
-        IO.writeTable(table, folderName);
+        tuples.subList(kept, tuples.size()).clear();
+        BloomIndex bloom = blooms.get(table.getName().toLowerCase(Locale.ROOT));
+        if (bloom != null) {
+            bloom.rebuild(table);
+        }
+        cache.resize(table);
+        if (publisher != null) {
+            publisher.deleted(table.getName(), sel);
+        }
+        writeTable(table, bytes);
         updateTable(table);
     }
 
+    /**
+     * Returns a copy of the base tables (not the views), by table name
+     * @return
+     * @throws InvalidQueryException
+     */
+    synchronized Map<String, ITable> copyTables() throws InvalidQueryException {
+        Map<String, ITable> copy = new LinkedHashMap<>();
+        for (int i = 0; i < schemas.size(); i++) {
+            String tableName = tables.get(i).getName();
+            if (isView(tableName)) {
+                continue;
+            }
+            ITable table = getTable(tableName);
+            Table tableCopy = new Table(table.getName(), table.getSchema());
+            for (ITuple tuple : table.getTuples()) {
+                Tuple tupleCopy = new Tuple(table.getSchema());
+                tupleCopy.setValues(tuple.getValues().clone());
+                tableCopy.addTuple(tupleCopy);
+            }
+            copy.put(tableName, tableCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * Applies an insert of the primary database (on a replica)
+     * @param tableName
+     * @param values
+     * @throws InvalidQueryException
+     */
+    public synchronized void applyInsert(String tableName, Object[] values) throws InvalidQueryException {
+        ITable table = getBaseTable(tableName);
+        Tuple tuple = new Tuple(table.getSchema());
+        tuple.setValues(values);
+        insertTuple(table, tuple);
+    }
+
+    /**
+     * Applies an update of the primary database (on a replica)
+     * @param tableName
+     * @param sel the indexes of the updated rows
+     * @param rows the new values of the rows
+     * @throws InvalidQueryException
+     */
+    public synchronized void applyUpdate(String tableName, int[] sel, List<Object[]> rows) throws InvalidQueryException {
+        updateRows(getBaseTable(tableName), sel, rows);
+    }
+
+    /**
+     * Applies a delete of the primary database (on a replica)
+     * @param tableName
+     * @param sel the indexes of the deleted rows, in increasing order
+     * @throws InvalidQueryException
+     */
+    public synchronized void applyDelete(String tableName, int[] sel) throws InvalidQueryException {
+        deleteRows(getBaseTable(tableName), sel);
+    }
+
+    /**
+     * Creates a materialized view based upon the create materialized view query
+     * (CREATE MATERIALIZED VIEW name AS SELECT ...)
+     * The view is stored as a regular table of the database and is kept up to date when its base table changes
+     * The rows of a view are kept in memory only: the query is written to the views file, and the view is created
+     * again when the database is opened
+     * If the query in not valid, throws an InvalidQueryException
+     *
+     * Implements the following algorithm
+     *
+     * Parse the query to get the view name and the select query
+     * If the query in not valid or the name is already used
+     *   Throw an invalid query exception
+     *   Exit
+     * Parse the select query
+     * Create the view (with the base table tuples that match the select query)
+     * Add the view table and its schema to the database
+     * Keep the base table and the view in memory (they are never evicted)
+     * Write the queries of the views to the views file
+     *
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public synchronized void createView(String query) throws InvalidQueryException {
+        addView(query);
+        List<String> definitions = new ArrayList<>();
+        for (MaterializedView view : views) {
+            definitions.add(view.getDefinition());
+        }
+        IO.writeViews(definitions, VIEWS_FILE, folderName);
+    }
+
+    /**
+     * Creates a materialized view (without writing the views file)
+     * @param query
+     * @throws InvalidQueryException
+     */
+    private void addView(String query) throws InvalidQueryException {
+        query = query.trim();
+        if (!query.startsWith("CREATE MATERIALIZED VIEW")) {
+            throw new InvalidQueryException("Not a create materialized view query.");
+        }
+
+        query = query.substring(24).trim();
+
+        int asIndex = query.indexOf(" AS ");
+        if (asIndex == -1) {
+            throw new InvalidQueryException("Missing AS.");
+        }
+        String viewName = query.substring(0, asIndex).trim();
+        String selectQuery = query.substring(asIndex + 4).trim();
+        if (viewName.isEmpty() || viewName.contains(" ")) {
+            throw new InvalidQueryException("Invalid view name: " + viewName);
+        }
+        for (ITable t : tables) {
+            if (t.getName().equalsIgnoreCase(viewName)) {
+                throw new InvalidQueryException("Table already exists: " + viewName);
+            }
+        }
+
+        SelectPlan plan = parseSelect(selectQuery);
+        if (plan.getCondition() != null && !plan.getCondition().isCacheable()) {
+            throw new InvalidQueryException("Subqueries are not supported in materialized views.");
+        }
+        MaterializedView view = new MaterializedView(viewName, selectQuery, plan, getTable(plan.getTableName()));
+        views.add(view);
+        addTable(view.getTable());
+        addSchema(view.getTable().getSchema());
+        cache.loaded(view.getTable());
+        cache.pin(view.getTable().getName());
+        cache.pin(plan.getTableName());
+    }
+
 }
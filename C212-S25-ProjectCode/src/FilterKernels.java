@@ -0,0 +1,271 @@
+/**
+ * Batch filter kernels: each kernel compares a batch of column values with a constant
+ * and appends the indexes of the matching values to a selection vector
+ *
+ * There is one loop per type and operator, so there is no dispatch inside the loops,
+ * and the loops over primitive arrays are branch free (the index is always written, the count is only
+ * incremented on a match) so that the JIT can unroll and vectorize them
+ *
+ * The selection vector must have room for base + n indexes
+ */
+public final class FilterKernels {
+    public static final int BATCH_SIZE = 1024;
+
+    private FilterKernels() {
+    }
+
+    /**
+     * Returns the value as a hash key that is equal to the keys of the values the kernels compare as equal:
+     * -0.0 is returned as 0.0 and NaN (which is equal to no value) as null
+     * @param value
+     * @return
+     */
+    public static Object key(Object value) {
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (d != d) {
+                return null;
+            }
+            if (d == 0.0) {
+                return 0.0;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Selects the int values that satisfy (value operator constant)
+     * @param values the batch of values
+     * @param n the number of values in the batch
+     * @param operator
+     * @param constant
+     * @param base the index (in the table) of the first value of the batch
+     * @param sel the selection vector
+     * @param count the number of indexes already in the selection vector
+     * @return the new number of indexes in the selection vector
+     */
+    public static int selectInt(int[] values, int n, Operator operator, int constant, int base, int[] sel, int count) {
+        switch (operator) {
+            case EQ:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += eq(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case NE:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += ne(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case LT:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += lt(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case GT:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += gt(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case LE:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += le(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            default:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += ge(values[i], constant) ? 1 : 0;
+                }
+                return count;
+        }
+    }
+
+    /**
+     * Selects the double values that satisfy (value operator constant)
+     * Values are compared with the primitive operators (so NaN is not equal to itself)
+     * @param values the batch of values
+     * @param n the number of values in the batch
+     * @param operator
+     * @param constant
+     * @param base the index (in the table) of the first value of the batch
+     * @param sel the selection vector
+     * @param count the number of indexes already in the selection vector
+     * @return the new number of indexes in the selection vector
+     */
+    public static int selectDouble(double[] values, int n, Operator operator, double constant, int base, int[] sel, int count) {
+        switch (operator) {
+            case EQ:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += eq(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case NE:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += ne(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case LT:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += lt(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case GT:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += gt(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case LE:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += le(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            default:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += ge(values[i], constant) ? 1 : 0;
+                }
+                return count;
+        }
+    }
+
+    /**
+     * Selects the string values that satisfy (value operator constant)
+     * @param values the batch of values
+     * @param n the number of values in the batch
+     * @param operator
+     * @param constant
+     * @param base the index (in the table) of the first value of the batch
+     * @param sel the selection vector
+     * @param count the number of indexes already in the selection vector
+     * @return the new number of indexes in the selection vector
+     */
+    public static int selectString(String[] values, int n, Operator operator, String constant, int base, int[] sel, int count) {
+        switch (operator) {
+            case EQ:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += eq(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case NE:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += ne(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case LT:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += lt(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case GT:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += gt(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            case LE:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += le(values[i], constant) ? 1 : 0;
+                }
+                return count;
+            default:
+                for (int i = 0; i < n; i++) {
+                    sel[count] = base + i;
+                    count += ge(values[i], constant) ? 1 : 0;
+                }
+                return count;
+        }
+    }
+
+    /**
+     * The comparisons of the kernels (value operator constant), one per type and operator
+     * They are also the comparisons of the compiled conditions (see QueryCompiler), so both have the same semantics:
+     * doubles are compared with the primitive operators (-0.0 is 0.0, NaN is not equal to any value)
+     * and strings with equals and compareTo
+     */
+
+    public static boolean eq(int value, int constant) {
+        return value == constant;
+    }
+
+    public static boolean ne(int value, int constant) {
+        return value != constant;
+    }
+
+    public static boolean lt(int value, int constant) {
+        return value < constant;
+    }
+
+    public static boolean gt(int value, int constant) {
+        return value > constant;
+    }
+
+    public static boolean le(int value, int constant) {
+        return value <= constant;
+    }
+
+    public static boolean ge(int value, int constant) {
+        return value >= constant;
+    }
+
+    public static boolean eq(double value, double constant) {
+        return value == constant;
+    }
+
+    public static boolean ne(double value, double constant) {
+        return value != constant;
+    }
+
+    public static boolean lt(double value, double constant) {
+        return value < constant;
+    }
+
+    public static boolean gt(double value, double constant) {
+        return value > constant;
+    }
+
+    public static boolean le(double value, double constant) {
+        return value <= constant;
+    }
+
+    public static boolean ge(double value, double constant) {
+        return value >= constant;
+    }
+
+    public static boolean eq(String value, String constant) {
+        return constant.equals(value);
+    }
+
+    public static boolean ne(String value, String constant) {
+        return !constant.equals(value);
+    }
+
+    public static boolean lt(String value, String constant) {
+        return value.compareTo(constant) < 0;
+    }
+
+    public static boolean gt(String value, String constant) {
+        return value.compareTo(constant) > 0;
+    }
+
+    public static boolean le(String value, String constant) {
+        return value.compareTo(constant) <= 0;
+    }
+
+    public static boolean ge(String value, String constant) {
+        return value.compareTo(constant) >= 0;
+    }
+}
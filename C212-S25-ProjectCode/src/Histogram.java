@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram: the values (in nanoseconds) are counted in power of two buckets
+ * Every bucket, the count and the sum are LongAdders (striped counters), so recording a value from many threads
+ * does not contend on a single variable. Percentiles are estimated from the buckets (as the bucket upper bound)
+ */
+public class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * constructor
+     */
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value (bucket i counts the values in [2^(i-1), 2^i))
+     * @param value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time since start (a System.nanoTime value)
+     * @param start
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the estimated value at the given percentile (0 to 100)
+     * @param percentile
+     * @return
+     */
+    public long getPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the counts of the buckets
+     * @return
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Adds the values of another histogram (the counts of its buckets, its sum and its max) to the histogram
+     * @param counts
+     * @param sum
+     * @param max
+     */
+    public void add(long[] counts, long sum, long max) {
+        for (int i = 0; i < Math.min(counts.length, BUCKETS); i++) {
+            buckets[i].add(counts[i]);
+            count.add(counts[i]);
+        }
+        this.sum.add(sum);
+        this.max.accumulate(max);
+    }
+
+    /**
+     * Resets the histogram
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Returns a summary of the histogram (count, mean, p50, p99 and max, in microseconds)
+     * @return
+     */
+    @Override
+    public String toString() {
+        long n = getCount();
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", n,
+                n == 0 ? 0.0 : getSum() / (double) n / 1000, getPercentile(50) / 1000.0,
+                getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,8 @@
+public interface IDatabase {
+    ITable selectData(String query) throws InvalidQueryException;
+    void insertData(String query) throws InvalidQueryException;
+    void updateData(String query) throws InvalidQueryException;
+    void deleteData(String query) throws InvalidQueryException;
+    void createView(String query) throws InvalidQueryException;
+    void close();
+}
@@ -0,0 +1,8 @@
+import java.util.Map;
+
+public interface IMetricsMXBean {
+    Map<String, Long> getCounters();
+    Map<String, String> getHistograms();
+    Map<String, Long> getGauges();
+    void reset();
+}
@@ -1,13 +1,23 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 
 /**
  * this is the IO utility class
  */
 public class IO {
+    private static final Histogram READ_TIME = Metrics.histogram("io.read");
+    private static final LongAdder READ_BYTES = Metrics.counter("io.read.bytes");
+    private static final Histogram WRITE_TIME = Metrics.histogram("io.write");
+    private static final LongAdder WRITE_BYTES = Metrics.counter("io.write.bytes");
 
     /**
      * Reads the table's data from a csv file
@@ -29,8 +39,20 @@ public class IO {
      * @return Table
      */
     public static ITable readTable(String tablename, ISchema schema, String folder) {
+        return readTable(tablename, schema, folder, false);
+    }
+
+    /**
+     * Reads the table's data from a csv file, into an off heap table if offHeap is true
+     * @param tablename
+     * @param schema
+     * @param folder
+     * @param offHeap
+     * @return
+     */
+    public static ITable readTable(String tablename, ISchema schema, String folder, boolean offHeap) {
         String filelocation = folder + "/" + tablename + ".csv";
-        Table table = new Table(tablename, schema);
+        ITable table = newTable(tablename, schema, offHeap);
         try (BufferedReader reader = new BufferedReader(new FileReader(filelocation))) {
             String line = null;
             while ((line = reader.readLine()) != null) {
@@ -48,38 +70,292 @@ public class IO {
         return table;
     }
 
+    /**
+     * Loads the table's data from its columnar snapshot, or from its csv file if there is no snapshot yet
+     *
+     * Implements the following algorithm
+     *
+     * Finish an interrupted rewrite of the snapshot file (by calling the recover method)
+     * Read the table from the snapshot file (by calling the snapshot read method)
+     * If there is no snapshot
+     *   Read the table from the csv file (by calling the read table method), if there is one
+     * Apply the inserts and updates from the log file (by calling the read log method)
+     * If the table was read from the csv file
+     *   Write the table to its snapshot (by calling the write table method), this deletes the csv file and the log
+     * Return table
+     *
+     * @param tablename
+     * @param schema
+     * @param folder
+     * @param offHeap true to store the tuples outside of the heap
+     * @return
+     */
+    public static ITable loadTable(String tablename, ISchema schema, String folder, boolean offHeap) {
+        long start = System.nanoTime();
+        recover(tablename, folder);
+        ITable table = Snapshot.read(tablename, schema, folder, offHeap);
+        long bytes = new File(folder + "/" + tablename + ".qes").length();
+        File csv = new File(folder + "/" + tablename + ".csv");
+        boolean imported = table == null && csv.exists();
+        if (table == null) {
+            table = imported ? readTable(tablename, schema, folder, offHeap) : newTable(tablename, schema, offHeap);
+            bytes = csv.length();
+        }
+        bytes += new File(folder + "/" + tablename + ".log").length();
+        readLog(table, folder);
+        READ_TIME.recordSince(start);
+        READ_BYTES.add(bytes);
+        if (imported) {
+            writeTable(table, folder);
+        }
+        return table;
+    }
 
+    /**
+     * Records a write of the given number of bytes, that started at start (a System.nanoTime value)
+     * @param start
+     * @param bytes
+     */
+    static void recordWrite(long start, long bytes) {
+        WRITE_TIME.recordSince(start);
+        WRITE_BYTES.add(bytes);
+    }
 
     /**
-     * Writes the tables' data to a csv file
+     * Creates an empty table, whose tuples are stored on the heap or (if offHeap is true) outside of the heap
+     * @param tablename
+     * @param schema
+     * @param offHeap
+     * @return
+     */
+    public static ITable newTable(String tablename, ISchema schema, boolean offHeap) {
+        return offHeap ? new OffHeapTable(tablename, schema) : new Table(tablename, schema);
+    }
+
+    /**
+     * Writes the tables' data to its snapshot file
      *
      * Implement the following algorithm
      *
-     * Open the csv file from the folder (corresponding to the tablename)
-     * Clear all file content
      * For each tuple in table
-     *   Write the tuple values to the file in csv format
+     *   Get the tuple values
+     * Write the values to the snapshot file (by calling the write rows method)
      *
      * @param table
      * @param folder
      */
     public static void writeTable(ITable table, String folder) {
-        String filelocation = folder + "/" + table.getName() + ".csv";
-        try (FileWriter writer = new FileWriter(filelocation)) {
-            List<ITuple> tuples = table.getTuples();
-            for (ITuple tuple : tuples) {
-                Object[] values = tuple.getValues();
-                for (int i = 0; i < values.length; i++) {
-                    writer.write(values[i].toString());
-                    if (i != values.length - 1) {
-                        writer.write(",");
-                    }
+        List<Object[]> rows = new ArrayList<>();
+        for (ITuple tuple : table.getTuples()) {
+            rows.add(tuple.getValues());
+        }
+        writeRows(table.getName(), table.getSchema(), rows, folder);
+    }
+
+    /**
+     * Writes rows (arrays of values) to the table's snapshot file, it replaces the snapshot, the log
+     * and the csv file of the table
+     *
+     * Implements the following algorithm
+     *
+     * Write the rows to the new snapshot file (by calling the snapshot write method)
+     * Delete the log file and the csv file (their rows are in the new snapshot)
+     * Rename the new snapshot file to the snapshot file (corresponding to the tablename)
+     * Return true if the rows were written
+     *
+     * If the program stops after the new snapshot file is complete, the next load finishes the rename
+     * (see recover), so the log of the old snapshot is never applied to the new one
+     *
+     * @param tableName
+     * @param schema
+     * @param rows
+     * @param folder
+     * @return
+     */
+    public static boolean writeRows(String tableName, ISchema schema, List<Object[]> rows, String folder) {
+        return Snapshot.write(tableName, schema, rows, folder) && recover(tableName, folder);
+    }
+
+    /**
+     * Finishes an interrupted rewrite of the table's snapshot file: if there is a complete new snapshot file,
+     * deletes the log file and the csv file (their rows are in the new snapshot) and renames the new snapshot file
+     * to the snapshot file. Deletes a partially written temporary file
+     * @param tableName
+     * @param folder
+     * @return false if the new snapshot file cannot be renamed
+     */
+    static boolean recover(String tableName, String folder) {
+        new File(folder + "/" + tableName + ".qes.tmp").delete();
+        File complete = new File(folder + "/" + tableName + ".qes.new");
+        if (!complete.exists()) {
+            return true;
+        }
+        new File(folder + "/" + tableName + ".log").delete();
+        new File(folder + "/" + tableName + ".csv").delete();
+        try {
+            Files.move(complete.toPath(), new File(folder + "/" + tableName + ".qes").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Appends updated rows to the table's log file
+     * Each line of the log is a record: an insert (I followed by the row values) or an update (U followed by
+     * the index of the row in the table and the new row values), then the checksum of the record
+     * (so a record that was cut off or corrupted is never applied, see readLog)
+     *
+     * Implements the following algorithm
+     *
+     * For each updated row
+     *   Make a record of U, the row index and the row values (as comma separated values)
+     * Append the records to the log file (by calling the append log method)
+     * Return the length of the log file
+     *
+     * @param tableName
+     * @param rowIds
+     * @param rows
+     * @param folder
+     * @return
+     */
+    public static long writeLog(String tableName, List<Integer> rowIds, List<Object[]> rows, String folder) {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < rowIds.size(); i++) {
+            StringBuilder record = new StringBuilder("U,").append(rowIds.get(i));
+            for (Object value : rows.get(i)) {
+                record.append(',').append(value);
+            }
+            appendRecord(records, record.toString());
+        }
+        return appendLog(tableName, records.toString(), folder);
+    }
+
+    /**
+     * Appends the (complete) records to the table's log file, in one write
+     * @param tableName
+     * @param records
+     * @param folder
+     * @return the length of the log file
+     */
+    private static long appendLog(String tableName, String records, String folder) {
+        long start = System.nanoTime();
+        File file = new File(folder + "/" + tableName + ".log");
+        long length = file.length();
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(records.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        recordWrite(start, file.length() - length);
+        return file.length();
+    }
+
+    /**
+     * Appends a log record to the records: the record, its checksum (in hexadecimal) and a new line
+     * @param records
+     * @param record
+     */
+    private static void appendRecord(StringBuilder records, String record) {
+        records.append(record).append(',').append(Long.toHexString(checksum(record))).append('\n');
+    }
+
+    private static long checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Applies the inserted and updated rows of the table's log file (if there is one) to the table
+     *
+     * Implements the following algorithm
+     *
+     * Read the log file from the folder (corresponding to the tablename)
+     * If the last line has no new line (the program stopped while it was written)
+     *   Truncate the file before it (so the next record is not appended to it)
+     * For each (complete) line in the log file
+     *   If its checksum is not the checksum of the record (the record is corrupted)
+     *     Skip the record
+     *   If the record is an insert
+     *     Parse the record to get the row values
+     *     Add a new tuple with the row values to the table
+     *   Else
+     *     Parse the record to get the row index and the row values
+     *     Set the values of the tuple at that index to the row values
+     *
+     * @param table
+     * @param folder
+     */
+    public static void readLog(ITable table, String folder) {
+        File file = new File(folder + "/" + table.getName() + ".log");
+        if (!file.exists()) {
+            return;
+        }
+        String log;
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            if (end < bytes.length) {
+                try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                    truncated.setLength(end);
                 }
-                writer.write("\n");
             }
+            log = new String(bytes, 0, end, StandardCharsets.UTF_8);
         }
         catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        List<ITuple> tuples = table.getTuples();
+        int skipped = 0;
+        for (String line : log.split("\n")) {
+            int checksumIndex = line.lastIndexOf(',');
+            if (checksumIndex == -1) {
+                skipped += line.isEmpty() ? 0 : 1;
+                continue;
+            }
+            String record = line.substring(0, checksumIndex);
+            try {
+                if (Long.parseLong(line.substring(checksumIndex + 1), 16) != checksum(record)) {
+                    skipped++;
+                    continue;
+                }
+                String[] fields = record.split(",", -1);
+                boolean insert = fields[0].equals("I");
+                int first = insert ? 1 : 2;
+                if (fields.length != table.getSchema().size() + first) {
+                    skipped++;
+                    continue;
+                }
+                Object[] values = new Object[fields.length - first];
+                for (int i = first; i < fields.length; i++) {
+                    values[i - first] = clean(fields[i]);
+                }
+                if (insert) {
+                    Tuple tuple = new Tuple(table.getSchema());
+                    tuple.setValues(values);
+                    table.addTuple(tuple);
+                    continue;
+                }
+                int rowId = Integer.parseInt(fields[1]);
+                if (rowId >= 0 && rowId < tuples.size()) {
+                    tuples.get(rowId).setValues(values);
+                }
+            }
+            catch (NumberFormatException e) {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            System.err.println("Skipped " + skipped + " invalid records of " + file);
         }
     }
 
@@ -97,15 +373,15 @@ public class IO {
      * @param schema
      */
     public static void printTable(ITable table, ISchema schema) {
-        for (int i = 0; i < schema.getAttributes().size(); i++) {
+        for (int i = 0; i < schema.size(); i++) {
             System.out.print(schema.getName(i) + "\t");
         }
         System.out.println();
+        int size = schema.size();
         for (ITuple tuple : table.getTuples()) {
-            Object[] values = tuple.getValues();
-            for (int i = 0; i < values.length; i++) {
-                System.out.print(values[i]);
-                if (i != values.length - 1) {
+            for (int i = 0; i < size; i++) {
+                System.out.print(tuple.<Object>getValue(i));
+                if (i != size - 1) {
                     System.out.print("\t");
                 }
             }
@@ -115,31 +391,27 @@ public class IO {
 
 
     /**
-     * Writes a tuple to a csv file
+     * Writes an inserted tuple to the table's log file
      *
      * Implements the following algorithm
      *
-     * Open the csv file from the folder (corresponding to the tablename)
-     * Append the tuple (as array of strings) in the csv format to the file
+     * Make a record of I and the tuple values (as comma separated values)
+     * Append the record to the log file (by calling the append log method)
+     * Return the length of the log file
      *
      * @param tableName
      * @param values
      * @param folder
+     * @return
      */
-    public static void writeTuple(String tableName, Object[] values, String folder) {
-        String filelocation = folder + "/" + tableName + ".csv";
-        try (FileWriter writer = new FileWriter(filelocation, true)) {
-            for (int i = 0; i < values.length; i++) {
-                writer.write(values[i].toString());
-                if (i != values.length - 1) {
-                    writer.write(",");
-                }
-            }
-            writer.write("\n");
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+    public static long writeTuple(String tableName, Object[] values, String folder) {
+        StringBuilder record = new StringBuilder("I");
+        for (Object value : values) {
+            record.append(',').append(value);
         }
+        StringBuilder records = new StringBuilder();
+        appendRecord(records, record.toString());
+        return appendLog(tableName, records.toString(), folder);
     }
 
     /**
@@ -164,6 +436,20 @@ public class IO {
      * @param db
      */
     public static void readSchema(String schemaFileName, String folderName, Database db) {
+        for (Map.Entry<String, ISchema> entry : readSchemas(schemaFileName, folderName).entrySet()) {
+            db.addSchema(entry.getValue());
+            db.addTable(new Table(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Reads and parses the schema file, returns the schemas of the tables (by table name, in the file order)
+     * @param schemaFileName
+     * @param folderName
+     * @return
+     */
+    public static Map<String, ISchema> readSchemas(String schemaFileName, String folderName) {
+        Map<String, ISchema> schemas = new LinkedHashMap<>();
         String filelocation = folderName + "/" + schemaFileName;
         try (BufferedReader reader = new BufferedReader(new FileReader(filelocation))) {
             String line;
@@ -176,14 +462,59 @@ public class IO {
                 for (String attribute : fields) {
                     attributes.put(index++, clean(attribute.trim()));
                 }
-                Schema currentSchema = new Schema(attributes);
-                db.addSchema(currentSchema);
-                db.addTable(new Table(tableName, currentSchema));
+                schemas.put(tableName, new Schema(attributes));
             }
         }
         catch (IOException e) {
             e.printStackTrace();
         }
+        return schemas;
+    }
+
+    /**
+     * Reads the views file: the queries that create the materialized views, one per line (in the order the views
+     * were created), or an empty list if there is no views file
+     * @param viewsFileName
+     * @param folderName
+     * @return
+     */
+    public static List<String> readViews(String viewsFileName, String folderName) {
+        File file = new File(folderName + "/" + viewsFileName);
+        List<String> queries = new ArrayList<>();
+        if (!file.exists()) {
+            return queries;
+        }
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    queries.add(line.trim());
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return queries;
+    }
+
+    /**
+     * Writes the queries that create the materialized views to the views file, one per line
+     * The queries are written to a temporary file which is then renamed, so the views file is never partially written
+     * @param queries
+     * @param viewsFileName
+     * @param folderName
+     */
+    public static void writeViews(List<String> queries, String viewsFileName, String folderName) {
+        File file = new File(folderName + "/" + viewsFileName);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), queries, StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
     }
 
     private static String clean(String s) {
@@ -6,4 +6,7 @@ public interface ISchema {
     Map<Integer, String> getNames();
     String getName(int index);
     String getType(int index);
-}
\ No newline at end of file
+    int size();
+    Column getColumn(int index);
+    int indexOf(String name);
+}
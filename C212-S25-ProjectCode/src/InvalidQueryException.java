@@ -4,6 +4,6 @@
 public class InvalidQueryException extends Exception {
 
     public InvalidQueryException(String s) {
-        System.out.println(s);
+        super(s);
     }
 }
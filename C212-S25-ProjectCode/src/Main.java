@@ -1,9 +1,72 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Main {
+    private static final Histogram SELECT_TIME = Metrics.histogram("statement.select");
+    private static final Histogram INSERT_TIME = Metrics.histogram("statement.insert");
+    private static final Histogram UPDATE_TIME = Metrics.histogram("statement.update");
+    private static final Histogram DELETE_TIME = Metrics.histogram("statement.delete");
+    private static final Histogram CREATE_VIEW_TIME = Metrics.histogram("statement.create_view");
+    private static final LongAdder ERRORS = Metrics.counter("errors");
 
-    public static void main(String[] args) {
-        Database db = new Database("db", "schema.txt");
+    public static void main(String[] args) throws IOException {
+        int shards = 0;
+        int replicationPort = -1;
+        String replicationBind = "127.0.0.1";
+        String primary = null;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--shards")) {
+                shards = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("--replication-port")) {
+                replicationPort = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("--replication-bind")) {
+                replicationBind = args[i + 1];
+            }
+            else if (args[i].equals("--replica-of")) {
+                primary = args[i + 1];
+            }
+        }
+        String replicationToken = System.getProperty("qe.replicationToken", "");
+        if ((primary != null || replicationPort >= 0) && replicationToken.isEmpty()) {
+            System.out.println("Replication needs a token shared by the primary and its replicas: "
+                    + "set it with -Dqe.replicationToken=...");
+            return;
+        }
+        IDatabase db;
+        if (primary != null) {
+            int colonIndex = primary.lastIndexOf(':');
+            db = new Replica(primary.substring(0, colonIndex), Integer.parseInt(primary.substring(colonIndex + 1)),
+                    replicationToken, System.getProperty("qe.replicaFolder", "replica"));
+        }
+        else if (shards > 0) {
+            Map<String, String> shardKeys = new HashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("qe.shardKey.")) {
+                    shardKeys.put(name.substring(12), System.getProperty(name));
+                }
+            }
+            db = new ShardCoordinator("db", "schema.txt", shards, shardKeys);
+        }
+        else {
+            if (ShardCoordinator.getShardCount("db") > 0) {
+                System.out.println("The database is partitioned into " + ShardCoordinator.getShardCount("db")
+                        + " shards, its tables are in the shard folders: start it with --shards "
+                        + ShardCoordinator.getShardCount("db"));
+                return;
+            }
+            Database database = openDatabase("db");
+            if (replicationPort >= 0) {
+                database.startPublisher(replicationBind, replicationPort, replicationToken);
+            }
+            db = database;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(db::close));
+        Metrics.registerMBean();
 
         Scanner scanner = new Scanner(System.in);
         System.out.println("Welcome to the database");
@@ -16,46 +79,126 @@ public class Main {
             runQuery(query, db);
         }
         scanner.close();
+        db.close();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Opens the database in the given folder, configured from the system properties
+     * (memory budget, storage, checkpointer and Bloom filters)
+     * @param folderName
+     * @return
+     */
+    public static Database openDatabase(String folderName) {
+        Database db = new Database(folderName, "schema.txt", Long.getLong("qe.memoryBudget", Long.MAX_VALUE));
+        if ("offheap".equalsIgnoreCase(System.getProperty("qe.storage"))) {
+            db.enableOffHeapStorage();
+        }
+        long checkpointInterval = Long.getLong("qe.checkpointInterval", 0);
+        if (checkpointInterval > 0) {
+            db.startCheckpointer(checkpointInterval, Long.getLong("qe.checkpointBytes", 1 << 20));
+        }
+        double bloomFalsePositiveRate = Double.parseDouble(System.getProperty("qe.bloomFpp", "0.01"));
+        if (bloomFalsePositiveRate > 0) {
+            db.enableBloomFilters(bloomFalsePositiveRate);
+        }
+        return db;
+    }
+
     /**
      * Runs the given query on the database
      *
      * Implements the following algorithm
      *
-     * Determine the type of query (from select, insert or delete)
+     * Determine the type of query (from select, insert, update, delete or create materialized view)
      * If select query
      *   Select data
      *   Print results
      * Else if insert query
      *   Insert data
+     * Else if update query
+     *   Update data
      * Else if delete is given
      *   Delete data
+     * Else if create materialized view query
+     *   Create view
+     * Else if show stats query
+     *   Print the metrics
+     * Else if show replication query
+     *   Print the replication status (of the primary or the replica)
      *
      * @param query
      * @param db
      */
-    public static void runQuery(String query, Database db) {
+    public static void runQuery(String query, IDatabase db) {
         if (query == null || query.isEmpty()) {
             return;
         }
         try {
+            long start = System.nanoTime();
             if (query.startsWith("SELECT")) {
                 ITable table = db.selectData(query);
+                SELECT_TIME.recordSince(start);
                 IO.printTable(table, table.getSchema());
             }
             else if (query.startsWith("INSERT")) {
                 db.insertData(query);
+                INSERT_TIME.recordSince(start);
                 System.out.println("Inserted Successfully");
             }
+            else if (query.startsWith("UPDATE")) {
+                db.updateData(query);
+                UPDATE_TIME.recordSince(start);
+                System.out.println("Updated Successfully");
+            }
             else if (query.startsWith("DELETE")) {
                 db.deleteData(query);
+                DELETE_TIME.recordSince(start);
                 System.out.println("Deleted Successfully");
             }
+            else if (query.startsWith("CREATE MATERIALIZED VIEW")) {
+                db.createView(query);
+                CREATE_VIEW_TIME.recordSince(start);
+                System.out.println("Created Successfully");
+            }
+            else if (query.startsWith("SHOW STATS")) {
+                System.out.println(stats(db));
+            }
+            else if (query.startsWith("SHOW REPLICATION")) {
+                System.out.println(replicationStatus(db));
+            }
         }
         catch (InvalidQueryException e) {
+            ERRORS.increment();
             System.out.println(e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the metrics for SHOW STATS: with shards, the metrics of the coordinator and of the shard workers
+     * @param db
+     * @return
+     * @throws InvalidQueryException
+     */
+    private static String stats(IDatabase db) throws InvalidQueryException {
+        if (db instanceof ShardCoordinator) {
+            return ((ShardCoordinator) db).getStats();
+        }
+        return Metrics.report();
+    }
+
+    /**
+     * Returns the replication status of the database: the publisher of a primary or the lag of a replica
+     * @param db
+     * @return
+     */
+    private static String replicationStatus(IDatabase db) {
+        if (db instanceof Replica) {
+            return db.toString();
+        }
+        if (db instanceof Database && ((Database) db).getPublisher() != null) {
+            return ((Database) db).getPublisher().toString();
+        }
+        return "Replication is not enabled";
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A materialized view stores the results of a select query in a regular table
+ * When the base table changes, the view is kept up to date by applying the changed tuples (the delta)
+ * instead of running the query again
+ * Applying a delta returns the tuples added to (or removed from) the view: they are the delta of the views
+ * defined on this view
+ *
+ * The rows of the view are indexed by their values, so a deleted tuple is found without scanning the view
+ */
+public class MaterializedView {
+    private String query;
+    private SelectPlan plan;
+    private Table table;
+    private Map<List<Object>, List<Integer>> positions;
+
+    /**
+     * constructor
+     * Creates the view table and fills it with the base table tuples that match the query
+     * @param name
+     * @param query the select query of the view
+     * @param plan
+     * @param base
+     * @throws InvalidQueryException
+     */
+    public MaterializedView(String name, String query, SelectPlan plan, ITable base) throws InvalidQueryException {
+        this.query = query;
+        this.plan = plan;
+        this.table = new Table(name, plan.getResultSchema());
+        this.positions = new HashMap<>();
+        insert(base.getTuples());
+    }
+
+    /**
+     * Returns the query that creates the view (CREATE MATERIALIZED VIEW name AS SELECT ...)
+     * @return
+     */
+    public String getDefinition() {
+        return "CREATE MATERIALIZED VIEW " + table.getName() + " AS " + query;
+    }
+
+    /**
+     * Returns the name of the base table
+     * @return
+     */
+    public String getBaseTableName() {
+        return plan.getTableName();
+    }
+
+    /**
+     * Returns the view table
+     * @return
+     */
+    public Table getTable() {
+        return table;
+    }
+
+    /**
+     * Applies tuples inserted in the base table
+     * The tuples that match the query are projected and added to the view
+     * @param tuples
+     * @return the tuples added to the view
+     * @throws InvalidQueryException
+     */
+    public List<ITuple> insert(List<ITuple> tuples) throws InvalidQueryException {
+        List<ITuple> added = new ArrayList<>();
+        for (int r : plan.select(tuples)) {
+            ITuple row = plan.project(tuples.get(r));
+            positions.computeIfAbsent(Arrays.asList(row.getValues()), k -> new ArrayList<>(1))
+                    .add(table.getTuples().size());
+            table.addTuple(row);
+            added.add(row);
+        }
+        return added;
+    }
+
+    /**
+     * Applies tuples deleted from the base table (an update is applied as a delete of the old values
+     * followed by an insert of the new values)
+     * For each deleted tuple that matches the query, one view tuple with the same (projected) values is removed
+     * (the order of the view tuples is not kept)
+     *
+     * Implements the following algorithm
+     *
+     * For each deleted tuple
+     *   If the tuple matches the where clause condition
+     *     Look up the position of a view tuple with its projected values (in the index)
+     *     Move the last view tuple to that position (and update its position in the index)
+     *     Remove the last position of the view
+     *
+     * @param tuples
+     * @return the tuples removed from the view
+     * @throws InvalidQueryException
+     */
+    public List<ITuple> delete(List<ITuple> tuples) throws InvalidQueryException {
+        List<ITuple> removed = new ArrayList<>();
+        List<ITuple> rows = table.getTuples();
+        for (int r : plan.select(tuples)) {
+            List<Object> values = Arrays.asList(plan.project(tuples.get(r)).getValues());
+            List<Integer> rowIds = positions.get(values);
+            if (rowIds == null) {
+                continue;
+            }
+            int position = rowIds.remove(rowIds.size() - 1);
+            if (rowIds.isEmpty()) {
+                positions.remove(values);
+            }
+            removed.add(rows.get(position));
+            int last = rows.size() - 1;
+            if (position != last) {
+                ITuple moved = rows.get(last);
+                List<Integer> movedIds = positions.get(Arrays.asList(moved.getValues()));
+                movedIds.set(movedIds.lastIndexOf(last), position);
+                rows.set(position, moved);
+            }
+            rows.remove(last);
+        }
+        return removed;
+    }
+}
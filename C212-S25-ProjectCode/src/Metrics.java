@@ -0,0 +1,186 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The global metrics registry: named counters (LongAdders) and latency histograms
+ *
+ * The counters and histograms are created on first use and then shared, the hot paths keep a reference to them
+ * (in static fields) so counting is a LongAdder increment. A gauge is a value read when the metrics are shown
+ * (the last registered supplier of its name). The metrics are shown by the SHOW STATS command
+ * and exposed through JMX (the qe:type=Metrics MXBean)
+ *
+ * Metrics:
+ *   statement.select, statement.insert, ...  the latency of the statements, by type
+ *   parse                                    the time to parse and compile a select (on a plan cache miss)
+ *   plan.cache.hits, plan.cache.misses       the select plan cache lookups
+ *   rows.scanned, rows.returned              the tuples read by the conditions and returned by the selects
+ *   io.read, io.write                        the time to read and write the table files, and the bytes (.bytes)
+ *   table.cache.hits, .loads, .reloads       the table cache lookups of resident tables, the loads from the disk
+ *   table.cache.evictions                    and the reloads of evicted tables, and the evicted tables
+ *   table.cache.resident.bytes, .tables      the (estimated) size and number of the resident tables (gauges)
+ *   bloom.negatives, bloom.blocks.skipped    the equalities answered by the Bloom filters, and the blocks not scanned
+ *   errors                                   the statements that failed (invalid queries)
+ *
+ * With shards, SHOW STATS also shows the metrics of the shard workers, merged (counters and gauges are summed)
+ * and prefixed with "shards." (shards.statement.select is the time the workers spent on the selects)
+ */
+public class Metrics implements IMetricsMXBean {
+    public static final String OBJECT_NAME = "qe:type=Metrics";
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the counter with the given name
+     * @param name
+     * @return
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram with the given name
+     * @param name
+     * @return
+     */
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge: the value of the metric is read from the supplier (it replaces the gauge with the same name)
+     * @param name
+     * @param value
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Registers the metrics MXBean with the platform MBean server (once)
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Metrics(), name);
+            }
+        }
+        catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the metrics (one per line, sorted by name)
+     * @return
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        Map<String, String> metrics = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> metrics.put(name, Long.toString(counter.sum())));
+        HISTOGRAMS.forEach((name, histogram) -> metrics.put(name, histogram.toString()));
+        GAUGES.forEach((name, gauge) -> metrics.put(name, Long.toString(gauge.getAsLong())));
+        metrics.forEach((name, value) -> sb.append(sb.length() == 0 ? "" : "\n").append(name).append('\t').append(value));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the metrics in the format of the shard worker STATS response, one per line:
+     *   C \t name \t value                           a counter or a gauge
+     *   H \t name \t sum \t max \t count,count,...    a histogram (and the counts of its buckets)
+     * @return
+     */
+    public static List<String> export() {
+        List<String> lines = new ArrayList<>();
+        COUNTERS.forEach((name, counter) -> lines.add("C\t" + name + "\t" + counter.sum()));
+        GAUGES.forEach((name, gauge) -> lines.add("C\t" + name + "\t" + gauge.getAsLong()));
+        HISTOGRAMS.forEach((name, histogram) -> {
+            StringBuilder sb = new StringBuilder("H\t").append(name).append('\t').append(histogram.getSum())
+                    .append('\t').append(histogram.getMax()).append('\t');
+            long[] counts = histogram.getBuckets();
+            for (int i = 0; i < counts.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(counts[i]);
+            }
+            lines.add(sb.toString());
+        });
+        return lines;
+    }
+
+    /**
+     * Merges an exported metric (a line of export) into the counters (summed) or the histograms
+     * @param line
+     * @param counters
+     * @param histograms
+     */
+    public static void merge(String line, Map<String, Long> counters, Map<String, Histogram> histograms) {
+        String[] fields = line.split("\t");
+        if (fields[0].equals("C")) {
+            counters.merge(fields[1], Long.parseLong(fields[2]), Long::sum);
+        }
+        else if (fields[0].equals("H")) {
+            String[] buckets = fields[4].split(",");
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = Long.parseLong(buckets[i]);
+            }
+            histograms.computeIfAbsent(fields[1], n -> new Histogram())
+                    .add(counts, Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        }
+    }
+
+    /**
+     * Returns merged metrics (one per line, sorted by name, with the prefix)
+     * @param prefix
+     * @param counters
+     * @param histograms
+     * @return
+     */
+    public static String report(String prefix, Map<String, Long> counters, Map<String, Histogram> histograms) {
+        StringBuilder sb = new StringBuilder();
+        Map<String, String> metrics = new TreeMap<>();
+        counters.forEach((name, value) -> metrics.put(prefix + name, Long.toString(value)));
+        histograms.forEach((name, histogram) -> metrics.put(prefix + name, histogram.toString()));
+        metrics.forEach((name, value) -> sb.append(sb.length() == 0 ? "" : "\n").append(name).append('\t').append(value));
+        return sb.toString();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> counters.put(name, counter.sum()));
+        return counters;
+    }
+
+    @Override
+    public Map<String, String> getHistograms() {
+        Map<String, String> histograms = new TreeMap<>();
+        HISTOGRAMS.forEach((name, histogram) -> histograms.put(name, histogram.toString()));
+        return histograms;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new TreeMap<>();
+        GAUGES.forEach((name, gauge) -> gauges.put(name, gauge.getAsLong()));
+        return gauges;
+    }
+
+    @Override
+    public void reset() {
+        COUNTERS.values().forEach(LongAdder::reset);
+        HISTOGRAMS.values().forEach(Histogram::reset);
+    }
+}
@@ -0,0 +1,524 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A table whose tuples are stored outside of the Java heap (in direct byte buffers)
+ *
+ * Each tuple is a fixed width row: an Integer takes 4 bytes, a Double 8 bytes and a String 12 bytes
+ * (the page, offset and length of its UTF-8 bytes in the var length region, which is shared by all the rows)
+ * Rows are stored in pages of ROWS_PER_PAGE rows and strings in pages of VAR_PAGE_SIZE bytes, so the heap only
+ * holds the page objects: the number of heap objects (and the garbage collection work) does not grow with the table
+ * The first row page and the var pages start small and double in size, so the allocated size of a small table
+ * (which is counted against the memory budget) follows its data
+ *
+ * The list of tuples creates a small row object (a row id) when a tuple is read, values are decoded on access
+ * Setting a value writes it to the row (an updated string is appended to the var length region, which is compacted
+ * when more than half of it is garbage). Setting a tuple of the list copies its values (or its row) to the row
+ * The buffers are released when the table is no longer referenced (e.g. after eviction)
+ */
+public class OffHeapTable implements ITable {
+    static final int ROWS_PER_PAGE = 1 << 14;
+    static final int VAR_PAGE_SIZE = 1 << 20;
+    private static final int STRING_SLOT = 12;
+    private static final int FIRST_PAGE_ROWS = 8;
+    private static final int FIRST_VAR_PAGE_SIZE = 256;
+
+    private String name;
+    private ISchema schema;
+    private ColumnType[] types;
+    private int[] offsets;
+    private int rowWidth;
+    private List<ByteBuffer> rowPages = new ArrayList<>();
+    private List<ByteBuffer> varPages = new ArrayList<>();
+    private long varBytes;
+    private long liveBytes;
+    private int size;
+    private Rows rows = new Rows(0, -1);
+
+    /**
+     * constructor
+     * @param name
+     * @param schema
+     */
+    public OffHeapTable(String name, ISchema schema) {
+        this.name = name;
+        this.schema = schema;
+        this.types = new ColumnType[schema.size()];
+        this.offsets = new int[schema.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = schema.getColumn(i).getType();
+            offsets[i] = rowWidth;
+            rowWidth += width(types[i]);
+        }
+    }
+
+    /**
+     * Returns the table name
+     * @return
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a tuple to the table (its values are copied to a new row)
+     * @param tuple
+     */
+    @Override
+    public void addTuple(ITuple tuple) {
+        if (rowPages.isEmpty()) {
+            rowPages.add(ByteBuffer.allocateDirect(rowWidth * FIRST_PAGE_ROWS));
+        }
+        else if (size == (rowPages.size() - 1) * ROWS_PER_PAGE + pageRows(rowPages.size() - 1)) {
+            growRowPages();
+        }
+        size++;
+        write(size - 1, tuple.getValues(), false);
+    }
+
+    /**
+     * Returns the list of tuples (views of the rows)
+     * @return
+     */
+    @Override
+    public List<ITuple> getTuples() {
+        return rows;
+    }
+
+    /**
+     * Returns the table schema
+     * @return
+     */
+    @Override
+    public ISchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns the number of bytes allocated outside of the heap
+     * @return
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer page : rowPages) {
+            bytes += page.capacity();
+        }
+        for (ByteBuffer page : varPages) {
+            bytes += page.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the indexes of the rows (in [from, to)) whose value in the given column satisfies the comparison
+     * with the constant, the values are read from the rows without creating objects
+     *
+     * Integers and Doubles are copied in batches to a primitive array and compared by the filter kernels
+     * Strings are compared as UTF-8 bytes with the UTF-8 bytes of the constant: for = and != the lengths are compared
+     * first, the order of the bytes is the order of the code points (which is the String order, except for
+     * characters outside of the Basic Multilingual Plane)
+     *
+     * @param from
+     * @param to
+     * @param index
+     * @param operator
+     * @param constant
+     * @return the selection vector (relative to from)
+     */
+    int[] select(int from, int to, int index, Operator operator, Object constant) {
+        int size = to - from;
+        int[] sel = new int[size];
+        int count = 0;
+        int batch = Math.min(size, FilterKernels.BATCH_SIZE);
+        int offset = offsets[index];
+        switch (types[index]) {
+            case INTEGER: {
+                int[] values = new int[batch];
+                for (int base = 0; base < size; base += batch) {
+                    int n = Math.min(batch, size - base);
+                    for (int i = 0; i < n; ) {
+                        int row = from + base + i;
+                        ByteBuffer page = page(row);
+                        int end = Math.min(n, i + ROWS_PER_PAGE - row % ROWS_PER_PAGE);
+                        for (int position = position(row) + offset; i < end; i++, position += rowWidth) {
+                            values[i] = page.getInt(position);
+                        }
+                    }
+                    count = FilterKernels.selectInt(values, n, operator, (Integer) constant, base, sel, count);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double[] values = new double[batch];
+                for (int base = 0; base < size; base += batch) {
+                    int n = Math.min(batch, size - base);
+                    for (int i = 0; i < n; ) {
+                        int row = from + base + i;
+                        ByteBuffer page = page(row);
+                        int end = Math.min(n, i + ROWS_PER_PAGE - row % ROWS_PER_PAGE);
+                        for (int position = position(row) + offset; i < end; i++, position += rowWidth) {
+                            values[i] = page.getDouble(position);
+                        }
+                    }
+                    count = FilterKernels.selectDouble(values, n, operator, (Double) constant, base, sel, count);
+                }
+                break;
+            }
+            default: {
+                byte[] bytes = ((String) constant).getBytes(StandardCharsets.UTF_8);
+                for (int r = 0; r < size; r++) {
+                    int row = from + r;
+                    ByteBuffer page = page(row);
+                    int position = position(row) + offset;
+                    int cmp = compare(varPages.get(page.getInt(position)), page.getInt(position + 4),
+                            page.getInt(position + 8), bytes, operator);
+                    sel[count] = r;
+                    count += operator.test(cmp) ? 1 : 0;
+                }
+                break;
+            }
+        }
+        return sel.length == count ? sel : Arrays.copyOf(sel, count);
+    }
+
+    /**
+     * Compares the string (length bytes at offset of the var page) with the bytes,
+     * for = and != only the sign (0 or not) of the result is meaningful
+     */
+    private static int compare(ByteBuffer page, int offset, int length, byte[] bytes, Operator operator) {
+        if ((operator == Operator.EQ || operator == Operator.NE) && length != bytes.length) {
+            return 1;
+        }
+        int n = Math.min(length, bytes.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (page.get(offset + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    private static int width(ColumnType type) {
+        switch (type) {
+            case INTEGER:
+                return 4;
+            case DOUBLE:
+                return 8;
+            default:
+                return STRING_SLOT;
+        }
+    }
+
+    private ByteBuffer page(int row) {
+        return rowPages.get(row / ROWS_PER_PAGE);
+    }
+
+    private int position(int row) {
+        return (row % ROWS_PER_PAGE) * rowWidth;
+    }
+
+    private Object read(int row, int index) {
+        ByteBuffer page = page(row);
+        int position = position(row) + offsets[index];
+        switch (types[index]) {
+            case INTEGER:
+                return page.getInt(position);
+            case DOUBLE:
+                return page.getDouble(position);
+            default:
+                ByteBuffer var = varPages.get(page.getInt(position));
+                byte[] bytes = new byte[page.getInt(position + 8)];
+                var.get(page.getInt(position + 4), bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void write(int row, int index, Object value, boolean replace) {
+        ByteBuffer page = page(row);
+        int position = position(row) + offsets[index];
+        Object v = types[index].convert(value);
+        switch (types[index]) {
+            case INTEGER:
+                page.putInt(position, (Integer) v);
+                break;
+            case DOUBLE:
+                page.putDouble(position, (Double) v);
+                break;
+            default:
+                if (replace) {
+                    liveBytes -= page.getInt(position + 8);
+                }
+                byte[] bytes = ((String) v).getBytes(StandardCharsets.UTF_8);
+                writeString(page, position, bytes);
+                liveBytes += bytes.length;
+                break;
+        }
+    }
+
+    private void write(int row, Object[] values, boolean replace) {
+        for (int i = 0; i < types.length; i++) {
+            write(row, i, values[i], replace);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the number of rows the row page can hold
+     */
+    private int pageRows(int page) {
+        return rowPages.get(page).capacity() / rowWidth;
+    }
+
+    /**
+     * Makes room for one more row: the first row page is doubled (its rows are copied) until it holds ROWS_PER_PAGE rows,
+     * then full pages are added
+     */
+    private void growRowPages() {
+        int last = rowPages.size() - 1;
+        if (pageRows(last) == ROWS_PER_PAGE) {
+            rowPages.add(ByteBuffer.allocateDirect(rowWidth * ROWS_PER_PAGE));
+            return;
+        }
+        ByteBuffer page = ByteBuffer.allocateDirect(rowWidth * Math.min(ROWS_PER_PAGE, pageRows(last) * 2));
+        page.put(rowPages.get(last).duplicate().clear());
+        page.clear();
+        rowPages.set(last, page);
+    }
+
+    /**
+     * Returns the total length of the strings of the row
+     */
+    private int stringBytes(int row) {
+        int bytes = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == ColumnType.STRING) {
+                bytes += page(row).getInt(position(row) + offsets[i] + 8);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Compacts the var length region if more than half of it (and more than a page) is garbage
+     * (the bytes of replaced and deleted strings)
+     */
+    private void compactIfNeeded() {
+        long garbage = varBytes - liveBytes;
+        if (garbage > VAR_PAGE_SIZE && garbage * 2 > varBytes) {
+            compactStrings();
+        }
+    }
+
+    /**
+     * Appends the bytes to the var length region and stores their location in the string slot
+     */
+    private void writeString(ByteBuffer page, int position, byte[] bytes) {
+        ByteBuffer var = varPages.isEmpty() ? null : varPages.get(varPages.size() - 1);
+        if (var == null || var.remaining() < bytes.length) {
+            int pageSize = var == null ? FIRST_VAR_PAGE_SIZE : Math.min(VAR_PAGE_SIZE, var.capacity() * 2);
+            var = ByteBuffer.allocateDirect(Math.max(pageSize, bytes.length));
+            varPages.add(var);
+        }
+        int offset = var.position();
+        var.put(bytes);
+        varBytes += bytes.length;
+        page.putInt(position, varPages.size() - 1);
+        page.putInt(position + 4, offset);
+        page.putInt(position + 8, bytes.length);
+    }
+
+    /**
+     * Copies the strings of the rows to new var pages, dropping the bytes of the replaced and deleted strings
+     * (the live bytes are recomputed: they are all the bytes of the new pages)
+     */
+    private void compactStrings() {
+        List<ByteBuffer> old = varPages;
+        varPages = new ArrayList<>();
+        varBytes = 0;
+        for (int row = 0; row < size; row++) {
+            ByteBuffer page = page(row);
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] != ColumnType.STRING) {
+                    continue;
+                }
+                int position = position(row) + offsets[i];
+                byte[] bytes = new byte[page.getInt(position + 8)];
+                old.get(page.getInt(position)).get(page.getInt(position + 4), bytes);
+                writeString(page, position, bytes);
+            }
+        }
+        liveBytes = varBytes;
+    }
+
+    /**
+     * Moves the row from one index to another (the string slots are copied, not the strings)
+     * The strings of the overwritten row become garbage and the strings of the moved row are referenced once more
+     */
+    private void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        liveBytes += stringBytes(from) - stringBytes(to);
+        copySlots(from, to);
+    }
+
+    /**
+     * Copies the slots of a row to another index (without changing the live bytes)
+     */
+    private void copySlots(int from, int to) {
+        ByteBuffer source = page(from);
+        ByteBuffer target = page(to);
+        int sourcePosition = position(from);
+        int targetPosition = position(to);
+        for (int i = 0; i < rowWidth; i++) {
+            target.put(targetPosition + i, source.get(sourcePosition + i));
+        }
+    }
+
+    /**
+     * Removes the rows in [from, to), the rows after them are moved down
+     */
+    private void removeRange(int from, int to) {
+        for (int row = from; row < to; row++) {
+            liveBytes -= stringBytes(row);
+        }
+        for (int row = to; row < size; row++) {
+            copySlots(row, row - (to - from));
+        }
+        size -= to - from;
+        while (rowPages.size() > (size + ROWS_PER_PAGE - 1) / ROWS_PER_PAGE) {
+            rowPages.remove(rowPages.size() - 1);
+        }
+        if (size == 0) {
+            varPages.clear();
+            varBytes = 0;
+        }
+        else {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * The list of tuples of the table, or of a range of them (from, to), where to = -1 means the end of the table
+     */
+    class Rows extends AbstractList<ITuple> {
+        private final int from;
+        private final int to;
+
+        private Rows(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        int getFrom() {
+            return from;
+        }
+
+        OffHeapTable getTable() {
+            return OffHeapTable.this;
+        }
+
+        @Override
+        public ITuple get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return new Row(from + index);
+        }
+
+        @Override
+        public ITuple set(int index, ITuple tuple) {
+            ITuple old = get(index);
+            if (tuple instanceof Row && ((Row) tuple).table() == OffHeapTable.this) {
+                move(((Row) tuple).row, from + index);
+            }
+            else {
+                write(from + index, tuple.getValues(), true);
+            }
+            return old;
+        }
+
+        @Override
+        public boolean add(ITuple tuple) {
+            if (to != -1) {
+                throw new UnsupportedOperationException();
+            }
+            addTuple(tuple);
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return (to == -1 ? OffHeapTable.this.size : to) - from;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            modCount++;
+            OffHeapTable.this.removeRange(from + fromIndex, from + toIndex);
+        }
+
+        @Override
+        public ITuple remove(int index) {
+            ITuple old = new Tuple(schema);
+            old.setValues(get(index).getValues());
+            removeRange(index, index + 1);
+            return old;
+        }
+
+        @Override
+        public List<ITuple> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+                throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex);
+            }
+            return new Rows(from + fromIndex, from + toIndex);
+        }
+    }
+
+    /**
+     * A tuple of the table (a row id), its values are read from (and written to) the row
+     */
+    private class Row implements ITuple {
+        private final int row;
+
+        private Row(int row) {
+            this.row = row;
+        }
+
+        private OffHeapTable table() {
+            return OffHeapTable.this;
+        }
+
+        @Override
+        public void setValue(int index, Object value) {
+            write(row, index, value, true);
+            compactIfNeeded();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getValue(int index) {
+            return (T) read(row, index);
+        }
+
+        @Override
+        public Object[] getValues() {
+            Object[] values = new Object[types.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = read(row, i);
+            }
+            return values;
+        }
+
+        @Override
+        public void setValues(Object[] values) {
+            write(row, values, true);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * The comparison operators of a condition (=, !=, <, >, <=, >=)
+ */
+public enum Operator {
+    EQ("="),
+    NE("!="),
+    LT("<"),
+    GT(">"),
+    LE("<="),
+    GE(">=");
+
+    private final String symbol;
+
+    Operator(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * Returns the operator for the given symbol
+     * @param symbol
+     * @return
+     * @throws InvalidQueryException if the symbol is not an operator
+     */
+    public static Operator fromSymbol(String symbol) throws InvalidQueryException {
+        for (Operator operator : values()) {
+            if (operator.symbol.equals(symbol)) {
+                return operator;
+            }
+        }
+        throw new InvalidQueryException("Invalid operator: " + symbol);
+    }
+
+    /**
+     * Returns true if the result of a comparison (as returned by compareTo) satisfies the operator
+     * @param comparison
+     * @return
+     */
+    public boolean test(int comparison) {
+        switch (this) {
+            case EQ:
+                return comparison == 0;
+            case NE:
+                return comparison != 0;
+            case LT:
+                return comparison < 0;
+            case GT:
+                return comparison > 0;
+            case LE:
+                return comparison <= 0;
+            default:
+                return comparison >= 0;
+        }
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+}
@@ -0,0 +1,117 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Set;
+
+/**
+ * Compiles conditions and projections into method handles
+ *
+ * A compiled condition is a (ITuple)boolean handle made of the getter of the attribute, the unboxing of the value
+ * and the comparison of the filter kernels for the type and the operator (with operand2 bound as a constant),
+ * so there is no dispatch on the type or the operator when the handle is invoked
+ * and a compiled condition has the same semantics as the kernels
+ * A compiled projection is a (ITuple)Object[] handle that reads the projected attributes
+ */
+public final class QueryCompiler {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle GET_VALUE;
+    private static final MethodHandle KEY;
+    private static final MethodHandle CONTAINS;
+    private static final MethodHandle NOT;
+
+    static {
+        try {
+            GET_VALUE = LOOKUP.findVirtual(ITuple.class, "getValue", MethodType.methodType(Object.class, int.class));
+            KEY = LOOKUP.findStatic(FilterKernels.class, "key", MethodType.methodType(Object.class, Object.class));
+            CONTAINS = LOOKUP.findVirtual(Set.class, "contains", MethodType.methodType(boolean.class, Object.class));
+            NOT = LOOKUP.findStatic(QueryCompiler.class, "not", MethodType.methodType(boolean.class, boolean.class));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private QueryCompiler() {
+    }
+
+    /**
+     * Compiles the comparison of an attribute with a constant
+     * @param index the index of the attribute
+     * @param type the type of the attribute
+     * @param operator
+     * @param constant operand2, parsed with the attribute type
+     * @return a (ITuple)boolean handle
+     */
+    public static MethodHandle compileComparison(int index, ColumnType type, Operator operator, Object constant) {
+        Class<?> primitive;
+        switch (type) {
+            case INTEGER:
+                primitive = int.class;
+                break;
+            case DOUBLE:
+                primitive = double.class;
+                break;
+            default:
+                primitive = String.class;
+                break;
+        }
+        // (ITuple)Object -> (ITuple)int, (ITuple)double or (ITuple)String (the cast and the unboxing)
+        MethodHandle getter = MethodHandles.insertArguments(GET_VALUE, 1, index)
+                .asType(MethodType.methodType(primitive, ITuple.class));
+        MethodHandle comparison;
+        try {
+            comparison = LOOKUP.findStatic(FilterKernels.class, operator.name().toLowerCase(),
+                    MethodType.methodType(boolean.class, primitive, primitive));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        comparison = MethodHandles.insertArguments(comparison, 1, constant);
+        return MethodHandles.filterArguments(comparison, 0, getter);
+    }
+
+    /**
+     * Compiles the membership of an attribute in a set of values (operand1 [NOT] IN (values))
+     * @param index the index of the attribute
+     * @param keys the values, as FilterKernels keys
+     * @param anti true for NOT IN
+     * @return a (ITuple)boolean handle
+     */
+    public static MethodHandle compileMembership(int index, Set<Object> keys, boolean anti) {
+        // (ITuple)Object -> (ITuple)Object (the key of the value)
+        MethodHandle getter = MethodHandles.filterReturnValue(MethodHandles.insertArguments(GET_VALUE, 1, index), KEY);
+        MethodHandle membership = MethodHandles.filterArguments(CONTAINS.bindTo(keys), 0, getter);
+        return anti ? MethodHandles.filterReturnValue(membership, NOT) : membership;
+    }
+
+    /**
+     * Compiles a condition that has the same result for every tuple
+     * @param result
+     * @return a (ITuple)boolean handle
+     */
+    public static MethodHandle compileConstant(boolean result) {
+        return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, result), 0, ITuple.class);
+    }
+
+    /**
+     * Compiles a projection
+     * @param columnMap for each attribute of the results schema, its index in the table schema
+     * @return a (ITuple)Object[] handle
+     */
+    public static MethodHandle compileProjection(int[] columnMap) {
+        int n = columnMap.length;
+        // (Object, ..., Object)Object[]
+        MethodHandle collector = MethodHandles.identity(Object[].class).asCollector(Object[].class, n);
+        MethodHandle[] getters = new MethodHandle[n];
+        for (int i = 0; i < n; i++) {
+            getters[i] = MethodHandles.insertArguments(GET_VALUE, 1, columnMap[i]);
+        }
+        // (ITuple, ..., ITuple)Object[] -> (ITuple)Object[]
+        MethodHandle values = MethodHandles.filterArguments(collector, 0, getters);
+        return MethodHandles.permuteArguments(values, MethodType.methodType(Object[].class, ITuple.class), new int[n]);
+    }
+
+    private static boolean not(boolean value) {
+        return !value;
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A replica is a read only copy of a primary database, kept up to date from the primary's change stream
+ * (see ReplicationPublisher)
+ *
+ * The replica sends the replication token of the primary, then receives a snapshot of the tables,
+ * writes it to its own folder and opens a database on it.
+ * Then a receiver thread reads the changes and a second thread applies them, so the changes are applied
+ * asynchronously while the replica serves select queries (and materialized views on the replicated tables)
+ * The replica lag is the number of changes the primary published but the replica has not applied yet,
+ * and the time between the primary's last change (or heartbeat) and the last applied change
+ *
+ * The changes must all be applied in order: if one cannot be applied, the replica stops (it disconnects from
+ * the primary and keeps serving the data of the last applied change) rather than skip it and diverge
+ */
+public class Replica implements IDatabase {
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final Database db;
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private final Thread receiver;
+    private final Thread applier;
+    private volatile long primarySeq;
+    private volatile long primaryTime;
+    private volatile long appliedSeq;
+    private volatile long appliedTime;
+    private volatile String failure;
+    private volatile boolean connected;
+
+    /**
+     * constructor
+     * Connects to the primary, writes its snapshot to the folder, opens the database and starts applying the changes
+     * @param host
+     * @param port
+     * @param token the replication token of the primary
+     * @param folderName
+     * @throws IOException
+     */
+    public Replica(String host, int port, String token, String folderName) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.socket = new Socket(host, port);
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+        socket.getOutputStream().write(("A\t" + token + "\n").getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+        readSnapshot(folderName);
+        this.connected = true;
+        this.db = Main.openDatabase(folderName);
+        this.receiver = new Thread(this::receive, "replica-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+        this.applier = new Thread(this::apply, "replica-applier");
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    /**
+     * Selects data from the replica
+     * The results are copied while the database is locked: the applier thread modifies the tables
+     * while the results are printed
+     * @param query
+     * @return
+     * @throws InvalidQueryException
+     */
+    public ITable selectData(String query) throws InvalidQueryException {
+        return db.selectCopy(query);
+    }
+
+    public void insertData(String query) throws InvalidQueryException {
+        throw new InvalidQueryException("Cannot insert into a read only replica.");
+    }
+
+    public void updateData(String query) throws InvalidQueryException {
+        throw new InvalidQueryException("Cannot update a read only replica.");
+    }
+
+    public void deleteData(String query) throws InvalidQueryException {
+        throw new InvalidQueryException("Cannot delete from a read only replica.");
+    }
+
+    /**
+     * Creates a materialized view on the replica (it is maintained from the applied changes)
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public void createView(String query) throws InvalidQueryException {
+        db.createView(query);
+    }
+
+    /**
+     * Disconnects from the primary and closes the database
+     */
+    public void close() {
+        disconnect();
+        applier.interrupt();
+        db.close();
+    }
+
+    private void disconnect() {
+        connected = false;
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Returns the number of changes published by the primary that are not applied yet
+     * @return
+     */
+    public long getLag() {
+        return Math.max(0, primarySeq - appliedSeq);
+    }
+
+    /**
+     * Returns the replication lag in milliseconds (0 if all the published changes are applied)
+     * @return
+     */
+    public long getLagMillis() {
+        return getLag() == 0 ? 0 : Math.max(0, primaryTime - appliedTime);
+    }
+
+    /**
+     * Returns the sequence number of the last applied change
+     * @return
+     */
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    /**
+     * Returns a summary of the replica (for SHOW REPLICATION)
+     * @return
+     */
+    @Override
+    public String toString() {
+        return "Replica of " + host + ":" + port + ": "
+                + (failure != null ? "stopped (" + failure + ")" : connected ? "connected" : "disconnected")
+                + ", applied " + appliedSeq + " of " + primarySeq + " changes, lag " + getLag() + " changes ("
+                + getLagMillis() + " ms)";
+    }
+
+    /**
+     * Reads the snapshot of the primary and writes it (schema and tables) to the folder
+     *
+     * Implements the following algorithm
+     *
+     * If the primary refused the token
+     *   Throw an IO exception
+     * Read the schema lines and write them to the schema file
+     * For each table
+     *   Read the rows of the table
+     *   Write the rows to the table's snapshot file
+     * Read the sequence number of the snapshot
+     *
+     * @param folderName
+     * @throws IOException
+     */
+    private void readSnapshot(String folderName) throws IOException {
+        String line = reader.readLine();
+        if (line != null && line.startsWith("E\t")) {
+            socket.close();
+            throw new IOException("The primary refused the replica: " + line.substring(2));
+        }
+        new File(folderName).mkdirs();
+        try (PrintWriter schema = new PrintWriter(new File(folderName, "schema.txt"), StandardCharsets.UTF_8)) {
+            while (line != null && line.startsWith("C\t")) {
+                schema.println(line.substring(2));
+                line = reader.readLine();
+            }
+        }
+        Map<String, ISchema> schemas = IO.readSchemas("schema.txt", folderName);
+        while (line != null && line.startsWith("T\t")) {
+            String[] header = line.split("\t");
+            String tableName = ShardWorker.unescape(header[1]);
+            int n = Integer.parseInt(header[2]);
+            List<Object[]> rows = new ArrayList<>(n);
+            for (int r = 0; r < n; r++) {
+                rows.add(values(reader.readLine().split("\t", -1), 0));
+            }
+            if (!IO.writeRows(tableName, schemas.get(tableName), rows, folderName)) {
+                throw new IOException("Cannot write table " + tableName);
+            }
+            line = reader.readLine();
+        }
+        if (line == null || !line.startsWith("S\t")) {
+            throw new IOException("Invalid snapshot from the primary");
+        }
+        appliedSeq = Long.parseLong(line.substring(2));
+        primarySeq = appliedSeq;
+        appliedTime = System.currentTimeMillis();
+        primaryTime = appliedTime;
+    }
+
+    /**
+     * Reads the changes from the primary and queues them (for the applier thread)
+     */
+    private void receive() {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                long seq = Long.parseLong(fields[1]);
+                long time = Long.parseLong(fields[2]);
+                if (!fields[0].equals("H")) {
+                    Change change = new Change(fields, seq, time);
+                    if (fields[0].equals("U")) {
+                        int n = Integer.parseInt(fields[4]);
+                        change.rows = new ArrayList<>(n);
+                        change.sel = new int[n];
+                        for (int k = 0; k < n; k++) {
+                            String[] row = reader.readLine().split("\t", -1);
+                            change.sel[k] = Integer.parseInt(row[0]);
+                            change.rows.add(values(row, 1));
+                        }
+                    }
+                    changes.put(change);
+                }
+                primaryTime = time;
+                primarySeq = Math.max(primarySeq, seq);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // disconnected from the primary
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connected = false;
+    }
+
+    /**
+     * Applies the queued changes to the database
+     *
+     * Implements the following algorithm
+     *
+     * For each queued change (in order)
+     *   Apply the insert, update or delete to the table
+     *   If it cannot be applied
+     *     Record the failure, disconnect from the primary and stop (the next changes depend on this one)
+     *   Record the change as applied
+     */
+    private void apply() {
+        while (true) {
+            Change change;
+            try {
+                change = changes.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            try {
+                String tableName = ShardWorker.unescape(change.fields[3]);
+                switch (change.fields[0]) {
+                    case "I":
+                        db.applyInsert(tableName, values(change.fields, 4));
+                        break;
+                    case "U":
+                        db.applyUpdate(tableName, change.sel, change.rows);
+                        break;
+                    case "D":
+                        db.applyDelete(tableName, change.fields[4].isEmpty() ? new int[0]
+                                : Arrays.stream(change.fields[4].split(",")).mapToInt(Integer::parseInt).toArray());
+                        break;
+                    default:
+                        throw new InvalidQueryException("Unknown change: " + change.fields[0]);
+                }
+            }
+            catch (InvalidQueryException | RuntimeException e) {
+                failure = "change " + change.seq + " failed: " + e.getMessage();
+                System.err.println("Replica stopped, " + failure);
+                changes.clear();
+                disconnect();
+                return;
+            }
+            appliedTime = change.time;
+            appliedSeq = change.seq;
+        }
+    }
+
+    private static Object[] values(String[] fields, int from) {
+        Object[] values = new Object[fields.length - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ShardWorker.unescape(fields[from + i]);
+        }
+        return values;
+    }
+
+    /**
+     * A change received from the primary
+     */
+    private static class Change {
+        private final String[] fields;
+        private final long seq;
+        private final long time;
+        private int[] sel;
+        private List<Object[]> rows;
+
+        private Change(String[] fields, long seq, long time) {
+            this.fields = fields;
+            this.seq = seq;
+            this.time = time;
+        }
+    }
+}
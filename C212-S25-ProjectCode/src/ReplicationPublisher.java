@@ -0,0 +1,356 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The replication publisher sends the changes of a (primary) database to its replicas (see Replica)
+ *
+ * The publisher listens on the given address only (the loopback address by default, see Main)
+ * A replica connects to the publisher's port and first sends the replication token of the primary:
+ *   A token                                    the token (a replica that sends another token is disconnected)
+ * then it receives, one line each (values separated by tabs, escaped):
+ *   C schema                                   the schema of each table (as in the schema file)
+ *   T table n                                  the rows of each table, followed by n lines of values
+ *   S seq                                      the end of the snapshot: it contains the changes up to seq
+ * and then the stream of changes (numbered by seq, with the primary time in milliseconds):
+ *   I seq time table value ...                 a tuple was inserted into the table
+ *   U seq time table n                         n tuples were updated, followed by n lines of (row index, value ...)
+ *   D seq time table index,index,...           the tuples at these row indexes were deleted
+ *   H seq time                                 a heartbeat (every second), so the replicas can measure their lag
+ *
+ * The changes are published by the database while it holds its lock, so they are numbered in the order they were
+ * applied. Each replica has a queue and a sender thread: a write only formats its change and adds it to the queues,
+ * it never waits for a replica. A replica that falls more than MAX_QUEUED changes behind is disconnected
+ */
+public class ReplicationPublisher {
+    private static final int MAX_QUEUED = 1 << 20;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int AUTH_TIMEOUT_MILLIS = 5000;
+
+    private final Database db;
+    private final byte[] token;
+    private final ServerSocket serverSocket;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+    private final Thread heartbeat;
+    private long seq;
+    private long published;
+    private volatile boolean closed;
+
+    /**
+     * constructor
+     * Opens the port and starts accepting replicas
+     * @param db
+     * @param bindAddress the address to listen on
+     * @param port
+     * @param token the token the replicas must send
+     * @throws IOException
+     */
+    public ReplicationPublisher(Database db, String bindAddress, int port, String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A replication token is required");
+        }
+        this.db = db;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        this.acceptor = new Thread(this::accept, "replication-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+        this.heartbeat = new Thread(this::heartbeat, "replication-heartbeat");
+        this.heartbeat.setDaemon(true);
+        this.heartbeat.start();
+    }
+
+    /**
+     * Returns the port the replicas connect to
+     * @return
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connected replicas
+     * @return
+     */
+    public int getReplicaCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Returns the sequence number of the last change
+     * @return
+     */
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Publishes an insert
+     * @param tableName
+     * @param values
+     */
+    public synchronized void inserted(String tableName, Object[] values) {
+        StringBuilder line = header('I', tableName);
+        appendValues(line, values);
+        publish(line.toString());
+    }
+
+    /**
+     * Publishes an update
+     * @param tableName
+     * @param sel the indexes of the updated rows
+     * @param rows the new values of the rows
+     */
+    public synchronized void updated(String tableName, int[] sel, List<Object[]> rows) {
+        StringBuilder line = header('U', tableName).append('\t').append(sel.length);
+        for (int k = 0; k < sel.length; k++) {
+            line.append('\n').append(sel[k]);
+            appendValues(line, rows.get(k));
+        }
+        publish(line.toString());
+    }
+
+    /**
+     * Publishes a delete
+     * @param tableName
+     * @param sel the indexes of the deleted rows, in increasing order
+     */
+    public synchronized void deleted(String tableName, int[] sel) {
+        StringBuilder line = header('D', tableName).append('\t');
+        for (int k = 0; k < sel.length; k++) {
+            if (k > 0) {
+                line.append(',');
+            }
+            line.append(sel[k]);
+        }
+        publish(line.toString());
+    }
+
+    /**
+     * Stops publishing and disconnects the replicas
+     */
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        }
+        catch (IOException e) {
+            // already closed
+        }
+        heartbeat.interrupt();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Returns a summary of the publisher (for SHOW REPLICATION)
+     * @return
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Primary on " + serverSocket.getInetAddress().getHostAddress()
+                + " port " + getPort() + ": " + subscribers.size()
+                + " replica(s), " + published + " changes published (seq " + seq + ")");
+        for (Subscriber subscriber : subscribers) {
+            sb.append("\n  ").append(subscriber.socket.getRemoteSocketAddress())
+                    .append(": ").append(subscriber.queue.size()).append(" changes queued");
+        }
+        return sb.toString();
+    }
+
+    private StringBuilder header(char type, String tableName) {
+        seq++;
+        return new StringBuilder().append(type).append('\t').append(seq).append('\t')
+                .append(System.currentTimeMillis()).append('\t').append(ShardWorker.escape(tableName));
+    }
+
+    private static void appendValues(StringBuilder line, Object[] values) {
+        for (Object value : values) {
+            line.append('\t').append(ShardWorker.escape(String.valueOf(value)));
+        }
+    }
+
+    private void publish(String line) {
+        published++;
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.queue.offer(line)) {
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * Accepts the replicas: each one gets a sender thread (see Subscriber.start)
+     */
+    private void accept() {
+        while (!closed) {
+            try {
+                Subscriber subscriber = new Subscriber(serverSocket.accept());
+                Thread sender = new Thread(subscriber::start, "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            }
+            catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the replica sent the token (compared in constant time)
+     * @param line the first line from the replica
+     * @return
+     */
+    private boolean authenticate(String line) {
+        if (line == null || !line.startsWith("A\t")) {
+            return false;
+        }
+        return MessageDigest.isEqual(token, line.substring(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void heartbeat() {
+        while (!closed) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                String line = "H\t" + seq + "\t" + System.currentTimeMillis();
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.queue.offer(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * A connected replica: its socket and its queue of changes
+     */
+    private class Subscriber {
+        private final Socket socket;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+
+        private Subscriber(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Authenticates the replica, then sends it a snapshot of the tables and its queue of changes
+         *
+         * Implements the following algorithm
+         *
+         * Read the token of the replica (within AUTH_TIMEOUT_MILLIS)
+         * If it is not the token of the primary
+         *   Send an error and disconnect the replica
+         *   Exit
+         * While holding the database lock
+         *   Copy the tables
+         *   Add the replica to the subscribers (it receives the changes after the copy)
+         * Send the copy, then the changes
+         */
+        private void start() {
+            Map<String, ITable> snapshot;
+            long snapshotSeq;
+            try {
+                socket.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                if (!authenticate(reader.readLine())) {
+                    socket.getOutputStream().write("E\tInvalid replication token\n".getBytes(StandardCharsets.UTF_8));
+                    close();
+                    return;
+                }
+                socket.setSoTimeout(0);
+                synchronized (db) {
+                    snapshot = db.copyTables();
+                    synchronized (ReplicationPublisher.this) {
+                        snapshotSeq = seq;
+                        subscribers.add(this);
+                    }
+                }
+            }
+            catch (IOException e) {
+                // the replica disconnected (or did not send its token in time)
+                close();
+                return;
+            }
+            catch (InvalidQueryException e) {
+                e.printStackTrace();
+                close();
+                return;
+            }
+            run(snapshot, snapshotSeq);
+        }
+
+        private void run(Map<String, ITable> snapshot, long snapshotSeq) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+                for (ITable table : snapshot.values()) {
+                    ISchema schema = table.getSchema();
+                    StringBuilder line = new StringBuilder("C\t").append(table.getName()).append('(');
+                    for (int c = 0; c < schema.size(); c++) {
+                        line.append(c > 0 ? ", " : "").append(schema.getColumn(c));
+                    }
+                    writer.write(line.append(")\n").toString());
+                }
+                for (ITable table : snapshot.values()) {
+                    writer.write("T\t" + ShardWorker.escape(table.getName()) + "\t" + table.getTuples().size() + "\n");
+                    for (ITuple tuple : table.getTuples()) {
+                        StringBuilder line = new StringBuilder();
+                        appendValues(line, tuple.getValues());
+                        writer.write(line.substring(1));
+                        writer.write('\n');
+                    }
+                }
+                snapshot.clear();
+                writer.write("S\t" + snapshotSeq + "\n");
+                writer.flush();
+                while (!closed && !socket.isClosed()) {
+                    String line = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (line == null) {
+                        continue;
+                    }
+                    writer.write(line);
+                    writer.write('\n');
+                    if (queue.isEmpty()) {
+                        writer.flush();
+                    }
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                // the replica disconnected
+            }
+            finally {
+                close();
+            }
+        }
+
+        private void close() {
+            subscribers.remove(this);
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -1,28 +1,45 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
  * the schema is stored as a map of (index, name:type) pairs
+ * The name:type pairs are parsed once (in the constructor) into column descriptors
  */
 public class Schema implements ISchema {
 
     private Map<Integer, String> attributes;
     private Map<String, Integer> keys;
+    private Map<Integer, String> names;
+    private Map<String, Integer> ordinals;
+    private Column[] columns;
 
     /**
      * constructor
+     * Builds the column descriptors, the (name, index) maps and the (index, name) map
      * @param attributes
      */
     public Schema(Map<Integer, String> attributes) {
-        this.attributes = attributes;
-        this.keys = new HashMap<>();
-        for (Map.Entry<Integer, String> entry : attributes.entrySet()) {
-            String full = entry.getValue();
-            String name = full.split(":")[0];
-            keys.put(name, entry.getKey());
+        this.attributes = Collections.unmodifiableMap(new HashMap<>(attributes));
+        this.columns = new Column[attributes.size()];
+        Map<String, Integer> keys = new HashMap<>();
+        Map<String, Integer> ordinals = new HashMap<>();
+        Map<Integer, String> names = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            String full = attributes.get(i);
+            if (full == null) {
+                throw new IllegalArgumentException("Missing attribute at index " + i);
+            }
+            Column column = Column.parse(full, i);
+            columns[i] = column;
+            keys.put(column.getName(), i);
+            ordinals.put(column.getName().toLowerCase(Locale.ROOT), i);
+            names.put(i, column.getName());
         }
+        this.keys = Collections.unmodifiableMap(keys);
+        this.ordinals = ordinals;
+        this.names = Collections.unmodifiableMap(names);
     }
 
     /**
@@ -49,31 +66,57 @@ public class Schema implements ISchema {
      */
     @Override
     public Map<Integer, String> getNames() {
-        Map<Integer, String> names = new HashMap<>();
-        for (int i = 0; i < attributes.size(); i++) {
-            names.put(i, getName(i));
-        }
         return names;
     }
 
     /**
-     * splits the name:type to return the attribute name
+     * returns the attribute name
      * @param index
      * @return
      */
     @Override
     public String getName(int index) {
-        return attributes.get(index).split(":")[0];
+        return columns[index].getName();
     }
 
     /**
-     * splits the name:type to return the attribute type
+     * returns the attribute type
      * @param index
      * @return
      */
 
     @Override
     public String getType(int index) {
-        return attributes.get(index).split(":")[1];
+        return columns[index].getType().getTypeName();
+    }
+
+    /**
+     * Returns the number of attributes
+     * @return
+     */
+    @Override
+    public int size() {
+        return columns.length;
+    }
+
+    /**
+     * Returns the column descriptor at the given index
+     * @param index
+     * @return
+     */
+    @Override
+    public Column getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * Returns the index of the attribute with the given name (ignoring case), or -1 if there is none
+     * @param name
+     * @return
+     */
+    @Override
+    public int indexOf(String name) {
+        Integer index = ordinals.get(name.trim().toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed select query: the table it reads, the condition of its where clause (if any)
+ * and the projection (for each attribute of the results schema, its index in the table schema)
+ *
+ * The condition and the projection are compiled (into method handles) when the plan is created,
+ * so running the plan does not interpret the condition or the schema for each row
+ * The plans are cached by query, so a query is compiled once
+ * The rows of an off heap table are still compared in place (see OffHeapTable.select)
+ */
+public class SelectPlan {
+    private String tableName;
+    private ISchema schema;
+    private ISchema resultSchema;
+    private int[] columnMap;
+    private Condition condition;
+    private MethodHandle predicate;
+    private MethodHandle projection;
+
+    /**
+     * constructor
+     * @param tableName
+     * @param schema the schema of the table
+     * @param resultSchema
+     * @param columnMap
+     * @param condition the condition of the where clause, or null if there is none
+     * @throws InvalidQueryException if the condition is not valid for the table schema
+     */
+    public SelectPlan(String tableName, ISchema schema, ISchema resultSchema, int[] columnMap, Condition condition)
+            throws InvalidQueryException {
+        this.tableName = tableName;
+        this.schema = schema;
+        this.resultSchema = resultSchema;
+        this.columnMap = columnMap;
+        this.condition = condition;
+        this.predicate = condition == null ? null : condition.compile(schema);
+        this.projection = QueryCompiler.compileProjection(columnMap);
+    }
+
+    /**
+     * Returns the indexes of the tuples (of the table) that match the where clause condition
+     * @param tuples
+     * @return the selection vector
+     * @throws InvalidQueryException
+     */
+    public int[] select(List<ITuple> tuples) throws InvalidQueryException {
+        if (condition != null && tuples instanceof OffHeapTable.Rows) {
+            return condition.select(tuples, schema);
+        }
+        int size = tuples.size();
+        int[] sel = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            sel[count] = i;
+            count += predicate == null || matches(tuples.get(i)) ? 1 : 0;
+        }
+        return count == size ? sel : Arrays.copyOf(sel, count);
+    }
+
+    /**
+     * Creates a new results tuple with the values of the tuple (of the table)
+     * @param tuple
+     * @return
+     */
+    public ITuple project(ITuple tuple) {
+        Object[] values;
+        try {
+            values = (Object[]) projection.invokeExact(tuple);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        Tuple result = new Tuple(resultSchema);
+        result.setValues(values);
+        return result;
+    }
+
+    /**
+     * Copies the projected values of the selected tuples (of the table) into a new results table
+     * @param name
+     * @param tuples
+     * @param rowIds the selection vector
+     * @return
+     */
+    public Table materialize(String name, List<ITuple> tuples, int[] rowIds) {
+        Table table = new Table(name, resultSchema);
+        for (int rowId : rowIds) {
+            table.addTuple(project(tuples.get(rowId)));
+        }
+        return table;
+    }
+
+    private boolean matches(ITuple tuple) {
+        try {
+            return (boolean) predicate.invokeExact(tuple);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Getters
+     */
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public ISchema getSchema() {
+        return schema;
+    }
+
+    public ISchema getResultSchema() {
+        return resultSchema;
+    }
+
+    public int[] getColumnMap() {
+        return columnMap;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+}
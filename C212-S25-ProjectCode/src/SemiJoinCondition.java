@@ -0,0 +1,145 @@
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A condition of the form operand1 [NOT] IN (values), where the values come from a literal list or from a subquery,
+ * or of the form [NOT] EXISTS (subquery)
+ *
+ * The values are put in a hash set once (when the condition is created), so checking a tuple is a hash lookup
+ * (a hash semi join, or anti join for NOT IN and NOT EXISTS) instead of running the subquery again for every tuple
+ * A correlated EXISTS (SELECT ... FROM t WHERE t.a = outer.b) is the same semi join as b IN (SELECT a FROM t)
+ * and an uncorrelated EXISTS has the same result for every tuple
+ * The values are hashed as FilterKernels.key, so IN has the same semantics as = (-0.0 is 0.0, NaN matches nothing)
+ */
+public class SemiJoinCondition extends Condition {
+    private Set<Object> keys;
+    private boolean anti;
+    private boolean constant;
+    private boolean constantResult;
+    private boolean fromSubquery;
+    private ISchema boundSchema;
+    private int boundIndex;
+
+    private SemiJoinCondition(String operand1, Set<Object> keys, boolean anti, boolean fromSubquery) {
+        super(operand1, "", anti ? "NOT IN" : "IN");
+        this.keys = keys;
+        this.anti = anti;
+        this.fromSubquery = fromSubquery;
+    }
+
+    /**
+     * Creates an operand1 [NOT] IN (values) condition
+     * @param operand1 the attribute name
+     * @param keys the values (converted to the attribute type)
+     * @param anti true for NOT IN
+     * @param fromSubquery true if the values come from a subquery
+     * @return
+     */
+    public static SemiJoinCondition in(String operand1, Set<Object> keys, boolean anti, boolean fromSubquery) {
+        Set<Object> hashKeys = new HashSet<>();
+        for (Object key : keys) {
+            if (FilterKernels.key(key) != null) {
+                hashKeys.add(FilterKernels.key(key));
+            }
+        }
+        return new SemiJoinCondition(operand1, hashKeys, anti, fromSubquery);
+    }
+
+    /**
+     * Creates an uncorrelated [NOT] EXISTS (subquery) condition: it has the same result for every tuple
+     * @param nonEmpty true if the subquery has results
+     * @param anti true for NOT EXISTS
+     * @return
+     */
+    public static SemiJoinCondition exists(boolean nonEmpty, boolean anti) {
+        SemiJoinCondition condition = new SemiJoinCondition(null, null, anti, true);
+        condition.constant = true;
+        condition.constantResult = nonEmpty != anti;
+        return condition;
+    }
+
+    /**
+     * Returns the values of the IN list (null for an uncorrelated EXISTS)
+     * @return
+     */
+    public Set<Object> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns true for NOT IN and NOT EXISTS
+     * @return
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /**
+     * A condition with a subquery is not cached: its values would be out of date when the subquery table changes
+     * @return
+     */
+    @Override
+    public boolean isCacheable() {
+        return !fromSubquery;
+    }
+
+    /**
+     * Compiles the condition into a (ITuple)boolean method handle that probes the hash set
+     * @param schema
+     * @return
+     * @throws InvalidQueryException
+     */
+    @Override
+    public MethodHandle compile(ISchema schema) throws InvalidQueryException {
+        bind(schema);
+        if (constant) {
+            return QueryCompiler.compileConstant(constantResult);
+        }
+        return QueryCompiler.compileMembership(boundIndex, keys, anti);
+    }
+
+    /**
+     * Returns the indexes of the tuples (in the list) that satisfy the condition (probing the hash set)
+     * @param tuples
+     * @param schema
+     * @return
+     * @throws InvalidQueryException
+     */
+    @Override
+    public int[] select(List<ITuple> tuples, ISchema schema) throws InvalidQueryException {
+        bind(schema);
+        int size = tuples.size();
+        int[] sel = new int[size];
+        int count = 0;
+        if (constant) {
+            if (constantResult) {
+                for (int i = 0; i < size; i++) {
+                    sel[i] = i;
+                }
+                count = size;
+            }
+        }
+        else {
+            for (int i = 0; i < size; i++) {
+                sel[count] = i;
+                count += keys.contains(FilterKernels.key(tuples.get(i).getValue(boundIndex))) != anti ? 1 : 0;
+            }
+        }
+        return count == size ? sel : Arrays.copyOf(sel, count);
+    }
+
+    private void bind(ISchema schema) throws InvalidQueryException {
+        if (constant || schema == boundSchema) {
+            return;
+        }
+        int index = schema.indexOf(getOperand1());
+        if (index == -1) {
+            throw new InvalidQueryException("Attribute not found in schema");
+        }
+        boundIndex = index;
+        boundSchema = schema;
+    }
+}
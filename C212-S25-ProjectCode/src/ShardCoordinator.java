@@ -0,0 +1,714 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+/**
+ * A shard coordinator runs the queries on N shard worker processes (on this machine),
+ * each table is hash partitioned on its shard key (by default its first attribute) across the workers
+ *
+ * The data of shard i is in the folder shard-i-of-N of the database folder. The tables are partitioned from the
+ * database folder the first time the coordinator starts, after that the workers own their data: the shard count
+ * is recorded in the SHARDS_FILE of the database folder, whose own tables are out of date from then on
+ * (Main refuses to open them). Starting with another shard count repartitions the data of the current shards
+ *
+ * A select runs on all the shards at the same time (scatter) and their results are concatenated (gather)
+ * An insert runs on the shard that owns the shard key value, a select, update or delete whose where clause is
+ * (shard key = value) or (shard key IN (values)) runs only on the shards that own the values
+ * IN and EXISTS subqueries are run (on all the shards) first and replaced with the list of their values,
+ * so the semi join sees all the data and not only the data of one shard
+ * SHOW STATS shows the metrics of the coordinator and the merged metrics of the workers (see getStats)
+ */
+public class ShardCoordinator implements IDatabase {
+    public static final String SHARDS_FILE = "shards.txt";
+
+    private String folderName;
+    private Map<String, ISchema> schemas;
+    private Map<String, Integer> shardKeys;
+    private List<Shard> shards;
+    private boolean closed;
+
+    /**
+     * constructor
+     * Partitions the tables (if they are not partitioned yet) and starts the workers
+     * @param folderName
+     * @param schemaFileName
+     * @param shardCount
+     * @param keys the shard key of the tables (by table name), the tables that are not in the map use their first attribute
+     */
+    public ShardCoordinator(String folderName, String schemaFileName, int shardCount, Map<String, String> keys) {
+        this.folderName = folderName;
+        this.schemas = new HashMap<>();
+        this.shardKeys = new HashMap<>();
+        this.shards = new ArrayList<>();
+        Map<String, ISchema> tableSchemas = IO.readSchemas(schemaFileName, folderName);
+        Map<String, String> lowerKeys = new HashMap<>();
+        keys.forEach((table, key) -> lowerKeys.put(table.toLowerCase(Locale.ROOT), key));
+        for (Map.Entry<String, ISchema> entry : tableSchemas.entrySet()) {
+            String table = entry.getKey().toLowerCase(Locale.ROOT);
+            ISchema schema = entry.getValue();
+            String key = lowerKeys.getOrDefault(table, schema.getColumn(0).getName());
+            int index = schema.indexOf(key);
+            if (index == -1) {
+                throw new IllegalArgumentException("Shard key " + key + " not found in table " + entry.getKey());
+            }
+            schemas.put(table, schema);
+            shardKeys.put(table, index);
+        }
+        try {
+            partition(tableSchemas, schemaFileName, shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new Shard(i, shardFolder(i, shardCount)));
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the number of shards
+     * @return
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the shard that owns a (shard key) value
+     * @param value
+     * @return
+     */
+    public int shardOf(Object value) {
+        return shardOf(value, shards.size());
+    }
+
+    /**
+     * Returns the shard (of shardCount shards) that owns a value
+     * The value is hashed as FilterKernels.key, so the values that are equal in a condition (-0.0 and 0.0)
+     * are in the same shard
+     * @param value
+     * @param shardCount
+     * @return
+     */
+    static int shardOf(Object value, int shardCount) {
+        return Math.floorMod(Objects.hashCode(FilterKernels.key(value)), shardCount);
+    }
+
+    /**
+     * Selects data from the shards and merges their results
+     *
+     * Implements the following algorithm
+     *
+     * Replace the subqueries of the where clause with the lists of their values
+     * Choose the shards (the owners of the shard key values of the where clause, or all the shards)
+     * Send the query to the shards
+     * Read the results of the shards
+     * Return the concatenation of the results
+     *
+     * @param query
+     * @return
+     * @throws InvalidQueryException
+     */
+    public synchronized ITable selectData(String query) throws InvalidQueryException {
+        List<ITable> results = execute(query.trim());
+        ITable first = results.get(0);
+        Table table = new Table(first.getName(), first.getSchema());
+        for (ITable result : results) {
+            for (ITuple tuple : result.getTuples()) {
+                table.addTuple(tuple);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Inserts data into the shard that owns the shard key value of the tuple
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public synchronized void insertData(String query) throws InvalidQueryException {
+        query = query.trim();
+        if (!query.startsWith("INSERT INTO")) {
+            throw new InvalidQueryException("Not an INSERT query.");
+        }
+        String rest = query.substring(11).trim();
+        int parenIndex = rest.indexOf('(');
+        int valuesIndex = rest.indexOf("VALUES");
+        if (parenIndex == -1 || valuesIndex == -1) {
+            throw new InvalidQueryException("Invalid INSERT query.");
+        }
+        String tableName = rest.substring(0, parenIndex).trim();
+        ISchema schema = schemas.get(tableName.toLowerCase(Locale.ROOT));
+        if (schema == null) {
+            scatter(shards.subList(0, 1), query);
+            return;
+        }
+        String[] attributes = rest.substring(parenIndex, valuesIndex).replace("(", "").replace(")", "").split(",");
+        String[] values = rest.substring(valuesIndex + 6).replace("(", "").replace(")", "").split(",");
+        Column key = schema.getColumn(shardKeys.get(tableName.toLowerCase(Locale.ROOT)));
+        for (int i = 0; i < attributes.length && i < values.length; i++) {
+            if (attributes[i].trim().equalsIgnoreCase(key.getName())) {
+                int shard = owner(key, values[i].trim().replaceAll("^'+|'+$", ""));
+                if (shard == -1) {
+                    throw new InvalidQueryException("Invalid value for " + key.getName() + ": " + values[i].trim());
+                }
+                scatter(shards.subList(shard, shard + 1), query);
+                return;
+            }
+        }
+        throw new InvalidQueryException("Missing value for the shard key " + key.getName());
+    }
+
+    /**
+     * Updates the data of the shards (the shard key cannot be updated, the tuple would move to another shard)
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public synchronized void updateData(String query) throws InvalidQueryException {
+        query = query.trim();
+        int setIndex = query.indexOf("SET");
+        if (!query.startsWith("UPDATE") || setIndex == -1) {
+            throw new InvalidQueryException("Invalid UPDATE query.");
+        }
+        String tableName = query.substring(6, setIndex).trim();
+        ISchema schema = schemas.get(tableName.toLowerCase(Locale.ROOT));
+        if (schema != null) {
+            String key = schema.getColumn(shardKeys.get(tableName.toLowerCase(Locale.ROOT))).getName();
+            int whereIndex = query.indexOf("WHERE");
+            String setClause = query.substring(setIndex + 3, whereIndex == -1 ? query.length() : whereIndex);
+            for (String assignment : setClause.split(",")) {
+                if (assignment.split("=")[0].trim().equalsIgnoreCase(key)) {
+                    throw new InvalidQueryException("Cannot update the shard key " + key);
+                }
+            }
+        }
+        execute(query);
+    }
+
+    /**
+     * Deletes data from the shards (only from the owners of the shard key values of the where clause, if any)
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public synchronized void deleteData(String query) throws InvalidQueryException {
+        execute(query.trim());
+    }
+
+    /**
+     * Creates the materialized view on every shard (each shard maintains the view of its data)
+     * @param query
+     * @throws InvalidQueryException
+     */
+    public synchronized void createView(String query) throws InvalidQueryException {
+        scatter(shards, query.trim());
+    }
+
+    /**
+     * Stops the workers
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Runs a select, update or delete query on the shards that may have the tuples of its where clause
+     * @param query
+     * @return the results of the shards
+     * @throws InvalidQueryException
+     */
+    private List<ITable> execute(String query) throws InvalidQueryException {
+        int whereIndex = query.indexOf("WHERE");
+        String prefix = whereIndex == -1 ? query : query.substring(0, whereIndex).trim();
+        String tableName = tableName(prefix);
+        String clause = whereIndex == -1 ? null : rewriteCondition(query.substring(whereIndex + 5).trim(), tableName);
+        return scatter(route(tableName, clause), clause == null ? prefix : prefix + " WHERE " + clause);
+    }
+
+    /**
+     * Returns the table name of a select, update or delete query (without its where clause)
+     */
+    private static String tableName(String prefix) {
+        if (prefix.startsWith("UPDATE")) {
+            return prefix.substring(6).trim().split("\\s+")[0];
+        }
+        int fromIndex = prefix.lastIndexOf("FROM");
+        return fromIndex == -1 ? "" : prefix.substring(fromIndex + 4).trim();
+    }
+
+    /**
+     * Replaces the subqueries of a where clause (on the given table) with the lists of their values
+     *
+     * Implements the following algorithm
+     *
+     * If the clause is [NOT] EXISTS (SELECT ... FROM t WHERE t.a = table.b)
+     *   Rewrite it to b [NOT] IN (SELECT a FROM t)
+     * Else if the clause is an uncorrelated [NOT] EXISTS (subquery)
+     *   Run the subquery
+     *   Return no clause if the condition is true, a clause that is false for every tuple otherwise
+     * If the clause is attribute [NOT] IN (subquery)
+     *   Run the subquery
+     *   Return attribute [NOT] IN (the quoted values of the subquery)
+     * Return the clause
+     *
+     * @param clause
+     * @param tableName
+     * @return the clause, or null if the condition is true for every tuple
+     * @throws InvalidQueryException
+     */
+    private String rewriteCondition(String clause, String tableName) throws InvalidQueryException {
+        ISchema schema = schemas.get(tableName.toLowerCase(Locale.ROOT));
+        Matcher exists = Database.EXISTS_PATTERN.matcher(clause);
+        if (exists.matches()) {
+            boolean anti = exists.group(1) != null;
+            String subquery = exists.group(2).trim();
+            String in = correlatedIn(subquery, tableName, anti);
+            if (in != null) {
+                return rewriteCondition(in, tableName);
+            }
+            if (!subquery.startsWith("SELECT")) {
+                throw new InvalidQueryException("Invalid EXISTS subquery.");
+            }
+            boolean nonEmpty = !selectData(subquery).getTuples().isEmpty();
+            if (nonEmpty != anti) {
+                return null;
+            }
+            if (schema == null) {
+                throw new InvalidQueryException("Uncorrelated EXISTS subqueries are only supported on tables.");
+            }
+            return schema.getColumn(0).getName() + " IN ()";
+        }
+        Matcher in = Database.IN_PATTERN.matcher(clause);
+        if (in.matches() && in.group(3).trim().startsWith("SELECT")) {
+            ITable result = selectData(in.group(3).trim());
+            if (result.getSchema().size() != 1) {
+                throw new InvalidQueryException("Subquery must select exactly one attribute.");
+            }
+            int index = schema == null ? -1 : schema.indexOf(in.group(1));
+            Set<String> values = new LinkedHashSet<>();
+            for (ITuple tuple : result.getTuples()) {
+                String value = String.valueOf(tuple.<Object>getValue(0));
+                if (index == -1 || owner(schema.getColumn(index), value) != -1) {
+                    values.add(Database.quote(value));
+                }
+            }
+            return in.group(1) + (in.group(2) != null ? " NOT IN (" : " IN (") + String.join(", ", values) + ")";
+        }
+        return clause;
+    }
+
+    /**
+     * Rewrites a correlated EXISTS (SELECT ... FROM t WHERE t.a = table.b) to b [NOT] IN (SELECT a FROM t)
+     * @return the IN clause, or null if the subquery is not correlated
+     */
+    private static String correlatedIn(String subquery, String tableName, boolean anti) {
+        int fromIndex = subquery.indexOf("FROM");
+        int whereIndex = subquery.indexOf("WHERE");
+        if (fromIndex == -1 || whereIndex < fromIndex) {
+            return null;
+        }
+        String innerTableName = subquery.substring(fromIndex + 4, whereIndex).trim();
+        String[] conditionStr = subquery.substring(whereIndex + 5).trim().split("\\s+");
+        if (conditionStr.length != 3 || !conditionStr[1].equals("=")) {
+            return null;
+        }
+        String outerPrefix = tableName.toLowerCase(Locale.ROOT) + ".";
+        String left = conditionStr[0];
+        String right = conditionStr[2];
+        if (left.toLowerCase(Locale.ROOT).startsWith(outerPrefix)) {
+            String swap = left;
+            left = right;
+            right = swap;
+        }
+        if (!right.toLowerCase(Locale.ROOT).startsWith(outerPrefix)) {
+            return null;
+        }
+        String innerAttribute = left;
+        if (innerAttribute.toLowerCase(Locale.ROOT).startsWith(innerTableName.toLowerCase(Locale.ROOT) + ".")) {
+            innerAttribute = innerAttribute.substring(innerTableName.length() + 1);
+        }
+        return right.substring(outerPrefix.length()) + (anti ? " NOT IN " : " IN ")
+                + "(SELECT " + innerAttribute + " FROM " + innerTableName + ")";
+    }
+
+    /**
+     * Returns the shards that may have the tuples that satisfy the where clause (on the given table):
+     * the owners of the values of a (shard key = value) or (shard key IN (values)) clause, otherwise all the shards
+     */
+    private List<Shard> route(String tableName, String clause) {
+        ISchema schema = schemas.get(tableName.toLowerCase(Locale.ROOT));
+        if (schema == null || clause == null) {
+            return shards;
+        }
+        Column key = schema.getColumn(shardKeys.get(tableName.toLowerCase(Locale.ROOT)));
+        List<String> values = new ArrayList<>();
+        Matcher in = Database.IN_PATTERN.matcher(clause);
+        String[] conditionStr = clause.split("\\s+");
+        if (in.matches() && in.group(2) == null && in.group(1).equalsIgnoreCase(key.getName())) {
+            values.addAll(Database.splitValues(in.group(3).trim()));
+        }
+        else if (conditionStr.length == 3 && conditionStr[1].equals("=") && conditionStr[0].equalsIgnoreCase(key.getName())) {
+            values.add(conditionStr[2].replace("'", ""));
+        }
+        else {
+            return shards;
+        }
+        boolean[] owners = new boolean[shards.size()];
+        for (String value : values) {
+            int shard = owner(key, value);
+            if (shard == -1) {
+                return shards;
+            }
+            owners[shard] = true;
+        }
+        List<Shard> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (owners[shard.id]) {
+                result.add(shard);
+            }
+        }
+        // a select on no shard still needs the schema of its result
+        return result.isEmpty() ? shards.subList(0, 1) : result;
+    }
+
+    /**
+     * Returns the shard that owns the value (parsed with the type of the key), or -1 if it is not a value of that type
+     */
+    private int owner(Column key, String value) {
+        try {
+            return shardOf(key.getType().parse(value));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends the query to the shards, then reads their responses
+     * (the shards run the query at the same time)
+     * @param targets
+     * @param query
+     * @return the results of the shards (null for the shards that did not return a table)
+     * @throws InvalidQueryException the first error of the shards
+     */
+    private List<ITable> scatter(List<Shard> targets, String query) throws InvalidQueryException {
+        query = query.replace('\n', ' ');
+        InvalidQueryException error = null;
+        List<Shard> sent = new ArrayList<>();
+        for (Shard shard : targets) {
+            try {
+                shard.send(query);
+                sent.add(shard);
+            }
+            catch (InvalidQueryException e) {
+                error = error == null ? e : error;
+            }
+        }
+        List<ITable> results = new ArrayList<>();
+        for (Shard shard : sent) {
+            try {
+                results.add(shard.receive());
+            }
+            catch (InvalidQueryException e) {
+                error = error == null ? e : error;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return results;
+    }
+
+    /**
+     * Returns the metrics of the coordinator, then the metrics of the shard workers
+     * (merged, with the shards. prefix)
+     *
+     * Implements the following algorithm
+     *
+     * Send STATS to all the shards
+     * For each shard
+     *   For each metric of its response
+     *     Add its value to the merged counter or histogram of the same name
+     * Return the coordinator metrics and the merged metrics
+     *
+     * @return
+     * @throws InvalidQueryException if a shard failed
+     */
+    public synchronized String getStats() throws InvalidQueryException {
+        for (Shard shard : shards) {
+            shard.send("STATS");
+        }
+        Map<String, Long> counters = new TreeMap<>();
+        Map<String, Histogram> histograms = new TreeMap<>();
+        for (Shard shard : shards) {
+            for (String line : shard.receiveStats()) {
+                Metrics.merge(line, counters, histograms);
+            }
+        }
+        return Metrics.report() + "\n" + Metrics.report("shards.", counters, histograms);
+    }
+
+    private String shardFolder(int shard, int shardCount) {
+        return folderName + "/shard-" + shard + "-of-" + shardCount;
+    }
+
+    /**
+     * Returns the number of shards that own the data of the database folder, or 0 if it is not partitioned
+     * @param folderName
+     * @return
+     */
+    public static int getShardCount(String folderName) {
+        File file = new File(folderName, SHARDS_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        }
+        catch (IOException | NumberFormatException e) {
+            throw new IllegalStateException("Invalid shard file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Partitions the tables into the shard folders, unless they are already partitioned into shardCount shards
+     *
+     * Implements the following algorithm
+     *
+     * Get the current shard count (from the shards file)
+     * If it is the shard count
+     *   Exit (the shards own their data)
+     * If there is no shards file but every shard folder has a schema file
+     *   Record the shard count in the shards file and exit (the shards were partitioned before the file existed)
+     * For each table
+     *   For each source folder (the folders of the current shards, or the database folder if it is not partitioned)
+     *     Load the table
+     *     For each tuple
+     *       Add the tuple to the rows of the shard that owns its shard key value
+     *   Write the rows of each shard to the table file of the shard folder
+     * Copy the views file (of the first source folder) and the schema file to the shard folders
+     * Record the shard count in the shards file (last, it marks the partitioning complete)
+     * Delete the folders of the previous shards
+     *
+     * @param tableSchemas
+     * @param schemaFileName
+     * @param shardCount
+     * @throws IOException
+     */
+    private void partition(Map<String, ISchema> tableSchemas, String schemaFileName, int shardCount) throws IOException {
+        int current = getShardCount(folderName);
+        if (current == shardCount) {
+            return;
+        }
+        if (current == 0) {
+            boolean partitioned = true;
+            for (int i = 0; i < shardCount; i++) {
+                partitioned &= new File(shardFolder(i, shardCount), schemaFileName).exists();
+            }
+            if (partitioned) {
+                writeShardCount(shardCount);
+                return;
+            }
+        }
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < current; i++) {
+            sources.add(shardFolder(i, current));
+        }
+        if (sources.isEmpty()) {
+            sources.add(folderName);
+        }
+        for (int i = 0; i < shardCount; i++) {
+            Files.createDirectories(Paths.get(shardFolder(i, shardCount)));
+        }
+        for (Map.Entry<String, ISchema> entry : tableSchemas.entrySet()) {
+            int key = shardKeys.get(entry.getKey().toLowerCase(Locale.ROOT));
+            List<List<Object[]>> rows = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                rows.add(new ArrayList<>());
+            }
+            for (String source : sources) {
+                ITable table = IO.loadTable(entry.getKey(), entry.getValue(), source, false);
+                for (ITuple tuple : table.getTuples()) {
+                    Object value = tuple.getValue(key);
+                    rows.get(shardOf(value, shardCount)).add(tuple.getValues());
+                }
+            }
+            for (int i = 0; i < shardCount; i++) {
+                if (!IO.writeRows(entry.getKey(), entry.getValue(), rows.get(i), shardFolder(i, shardCount))) {
+                    throw new IOException("Cannot write table " + entry.getKey() + " to shard " + i);
+                }
+            }
+        }
+        Path views = Paths.get(sources.get(0), Database.VIEWS_FILE);
+        for (int i = 0; i < shardCount; i++) {
+            if (Files.exists(views)) {
+                Files.copy(views, Paths.get(shardFolder(i, shardCount), Database.VIEWS_FILE),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.copy(Paths.get(folderName, schemaFileName), Paths.get(shardFolder(i, shardCount), schemaFileName),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        writeShardCount(shardCount);
+        for (int i = 0; i < current; i++) {
+            deleteFolder(Paths.get(shardFolder(i, current)));
+        }
+    }
+
+    private void writeShardCount(int shardCount) throws IOException {
+        Path temp = Paths.get(folderName, SHARDS_FILE + ".tmp");
+        Files.write(temp, (shardCount + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, Paths.get(folderName, SHARDS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * A shard worker process, with the pipes to its standard input and output
+     */
+    private static class Shard {
+        private final int id;
+        private final Process process;
+        private final BufferedWriter in;
+        private final BufferedReader out;
+
+        private Shard(int id, String folder) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("qe.") && !name.startsWith("qe.shardKey.")) {
+                    command.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("ShardWorker");
+            command.add(folder);
+            this.id = id;
+            this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        private void send(String query) throws InvalidQueryException {
+            try {
+                in.write(query);
+                in.write('\n');
+                in.flush();
+            }
+            catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        /**
+         * Reads the response of the worker
+         * @return the result table of a select, null for the other queries
+         * @throws InvalidQueryException if the query failed on the worker
+         */
+        private ITable receive() throws InvalidQueryException {
+            try {
+                String line = out.readLine();
+                if (line == null) {
+                    throw new IOException("worker exited");
+                }
+                if (line.startsWith("ERR ")) {
+                    throw new InvalidQueryException(ShardWorker.unescape(line.substring(4)));
+                }
+                if (!line.startsWith("ROWS ")) {
+                    return null;
+                }
+                int rows = Integer.parseInt(line.substring(5));
+                String[] header = out.readLine().split("\t", -1);
+                Map<Integer, String> attributes = new HashMap<>();
+                for (int i = 1; i < header.length; i++) {
+                    attributes.put(i - 1, header[i]);
+                }
+                ISchema schema = new Schema(attributes);
+                Table table = new Table(ShardWorker.unescape(header[0]), schema);
+                for (int r = 0; r < rows; r++) {
+                    String[] values = out.readLine().split("\t", -1);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = ShardWorker.unescape(values[i]);
+                    }
+                    Tuple tuple = new Tuple(schema);
+                    tuple.setValues(values);
+                    table.addTuple(tuple);
+                }
+                return table;
+            }
+            catch (IOException | RuntimeException e) {
+                throw failed(e);
+            }
+        }
+
+        /**
+         * Reads the response of the worker to STATS
+         * @return the metrics lines
+         * @throws InvalidQueryException
+         */
+        private List<String> receiveStats() throws InvalidQueryException {
+            try {
+                String line = out.readLine();
+                if (line == null || !line.startsWith("STATS ")) {
+                    throw new IOException(line == null ? "worker exited" : "unexpected response " + line);
+                }
+                int n = Integer.parseInt(line.substring(6));
+                List<String> metrics = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    metrics.add(out.readLine());
+                }
+                return metrics;
+            }
+            catch (IOException | RuntimeException e) {
+                throw failed(e);
+            }
+        }
+
+        private InvalidQueryException failed(Exception e) {
+            return new InvalidQueryException("Shard " + id + " failed: " + e.getMessage());
+        }
+
+        private void close() {
+            try {
+                in.write("exit\n");
+                in.close();
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            }
+            catch (IOException e) {
+                process.destroy();
+            }
+            catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
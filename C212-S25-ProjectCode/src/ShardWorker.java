@@ -0,0 +1,168 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A shard worker is a process that runs the queries of a shard coordinator on its own database (one shard of the data)
+ *
+ * The coordinator writes one query per line on the worker's standard input and the worker writes the response
+ * on its standard output:
+ *   OK                                    after an insert, update, delete or create materialized view
+ *   ERR message                           if the query is not valid
+ *   ROWS n                                after a select, followed by
+ *   name \t attribute:Type \t ...         the result table name and schema
+ *   value \t value \t ...                 and the n result rows
+ *   STATS n                               after STATS, followed by the n metrics of the worker (see Metrics.export)
+ * Tabs, new lines and backslashes in the values are escaped. The worker stops on "exit" (or at the end of the input)
+ */
+public class ShardWorker {
+    private static final Histogram SELECT_TIME = Metrics.histogram("statement.select");
+    private static final Histogram INSERT_TIME = Metrics.histogram("statement.insert");
+    private static final Histogram UPDATE_TIME = Metrics.histogram("statement.update");
+    private static final Histogram DELETE_TIME = Metrics.histogram("statement.delete");
+    private static final Histogram CREATE_VIEW_TIME = Metrics.histogram("statement.create_view");
+    private static final LongAdder ERRORS = Metrics.counter("errors");
+
+    /**
+     * Runs a worker on the database in the given folder (args[0])
+     *
+     * Implements the following algorithm
+     *
+     * Open the database in the folder
+     * Redirect the standard output to the standard error (so only responses are written on the standard output)
+     * For each query line (until exit)
+     *   Run the query (or read the metrics)
+     *   Write the response (the result rows of a select, the metrics, OK or the error message)
+     * Close the database
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        Database db = Main.openDatabase(args[0]);
+        Metrics.registerMBean();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        String query;
+        while ((query = reader.readLine()) != null && !query.equals("exit")) {
+            try {
+                long start = System.nanoTime();
+                if (query.startsWith("SELECT")) {
+                    ITable table = db.selectData(query);
+                    SELECT_TIME.recordSince(start);
+                    writeTable(table, writer);
+                }
+                else if (query.equals("STATS")) {
+                    List<String> metrics = Metrics.export();
+                    writer.write("STATS " + metrics.size() + "\n");
+                    for (String metric : metrics) {
+                        writer.write(metric + "\n");
+                    }
+                }
+                else {
+                    run(query, db).recordSince(start);
+                    writer.write("OK\n");
+                }
+            }
+            catch (InvalidQueryException | RuntimeException e) {
+                ERRORS.increment();
+                writer.write("ERR " + escape(String.valueOf(e.getMessage())) + "\n");
+            }
+            writer.flush();
+        }
+        db.close();
+    }
+
+    /**
+     * Runs an insert, update, delete or create materialized view query
+     * @param query
+     * @param db
+     * @return the histogram of the statement type
+     * @throws InvalidQueryException
+     */
+    private static Histogram run(String query, Database db) throws InvalidQueryException {
+        if (query.startsWith("INSERT")) {
+            db.insertData(query);
+            return INSERT_TIME;
+        }
+        else if (query.startsWith("UPDATE")) {
+            db.updateData(query);
+            return UPDATE_TIME;
+        }
+        else if (query.startsWith("DELETE")) {
+            db.deleteData(query);
+            return DELETE_TIME;
+        }
+        else if (query.startsWith("CREATE MATERIALIZED VIEW")) {
+            db.createView(query);
+            return CREATE_VIEW_TIME;
+        }
+        else {
+            throw new InvalidQueryException("Unknown query: " + query);
+        }
+    }
+
+    private static void writeTable(ITable table, Writer writer) throws IOException {
+        ISchema schema = table.getSchema();
+        List<ITuple> tuples = table.getTuples();
+        writer.write("ROWS " + tuples.size() + "\n");
+        writer.write(escape(table.getName()));
+        for (int i = 0; i < schema.size(); i++) {
+            writer.write("\t" + schema.getColumn(i));
+        }
+        writer.write("\n");
+        for (ITuple tuple : tuples) {
+            for (int i = 0; i < schema.size(); i++) {
+                if (i > 0) {
+                    writer.write('\t');
+                }
+                writer.write(escape(String.valueOf(tuple.<Object>getValue(i))));
+            }
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Escapes the tabs, new lines and backslashes of a value
+     * @param value
+     * @return
+     */
+    static String escape(String value) {
+        if (value.indexOf('\t') == -1 && value.indexOf('\n') == -1 && value.indexOf('\\') == -1) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    /**
+     * Reverses escape
+     * @param value
+     * @return
+     */
+    static String unescape(String value) {
+        if (value.indexOf('\\') == -1) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,480 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar snapshot of a table (one .qes file per table), the file the table is stored in
+ *
+ * A snapshot stores the table column by column, each column with the encoding that suits it:
+ *   String columns with few distinct values are dictionary encoded (the codes are stored as integers),
+ *   the other String columns (and the dictionaries) are front coded (prefix shared with the previous value + rest)
+ *   Integer columns (and dictionary codes) are run length encoded when they have long runs,
+ *   otherwise bit packed (as offsets from the minimum value, or as deltas for nearly sorted values)
+ *   Double columns are stored as they are
+ *
+ * The changes made after the snapshot was written are in the log file of the table, the snapshot is rewritten
+ * (and the log cleared) when the table is written (see IO.writeRows). The csv file of a table is only read when
+ * there is no snapshot: it is imported into a snapshot and deleted
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x51455333; // QES3
+
+    private static final byte PLAIN = 0;
+    private static final byte DICTIONARY = 1;
+    private static final byte RUN_LENGTH = 2;
+    private static final byte FRAME_OF_REFERENCE = 3;
+    private static final byte DELTA = 4;
+
+    /**
+     * Reads the table from its snapshot file
+     * Returns null if there is no snapshot or if it does not match the schema
+     *
+     * Implements the following algorithm
+     *
+     * Open the snapshot file from the folder (corresponding to the tablename)
+     * Check the header (schema)
+     * For each column
+     *   Decode the column values
+     * For each row
+     *   Create a new tuple with the schema of the table
+     *   Set the tuple values to the row values of the columns
+     *   Add the tuple to the table
+     *
+     * @param tablename
+     * @param schema
+     * @param folder
+     * @return
+     */
+    public static ITable read(String tablename, ISchema schema, String folder) {
+        return read(tablename, schema, folder, false);
+    }
+
+    /**
+     * Reads the table from its snapshot file, into an off heap table if offHeap is true
+     * @param tablename
+     * @param schema
+     * @param folder
+     * @param offHeap
+     * @return the table, or null if there is no (valid) snapshot
+     */
+    public static ITable read(String tablename, ISchema schema, String folder, boolean offHeap) {
+        File file = snapshotFile(tablename, folder);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            if (!in.readUTF().equals(describe(schema))) {
+                return null;
+            }
+            int rows = in.readInt();
+            Object[][] columns = new Object[schema.size()][];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = readColumn(in, schema.getColumn(c).getType(), rows);
+            }
+            ITable table = IO.newTable(tablename, schema, offHeap);
+            for (int r = 0; r < rows; r++) {
+                Object[] values = new Object[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    values[c] = columns[c][r];
+                }
+                Tuple tuple = new Tuple(schema);
+                tuple.setValues(values);
+                table.addTuple(tuple);
+            }
+            return table;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the rows of a table to a new snapshot file
+     * The snapshot is written to a temporary file which is then renamed to the new snapshot file, so a new snapshot
+     * file is always complete. It replaces the snapshot file (and the log) of the table when the table is recovered
+     * (see IO.recover)
+     *
+     * Implements the following algorithm
+     *
+     * Open a temporary file in the folder
+     * Write the header (schema, number of rows)
+     * For each column
+     *   Choose the column encoding
+     *   Write the encoded column values
+     * Rename the temporary file to the new snapshot file
+     *
+     * @param tableName
+     * @param schema
+     * @param rows
+     * @param folder
+     * @return true if the new snapshot file was written
+     */
+    public static boolean write(String tableName, ISchema schema, List<Object[]> rows, String folder) {
+        long start = System.nanoTime();
+        File file = new File(folder + "/" + tableName + ".qes.new");
+        File temp = new File(folder + "/" + tableName + ".qes.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(describe(schema));
+            out.writeInt(rows.size());
+            for (int c = 0; c < schema.size(); c++) {
+                writeColumn(out, schema.getColumn(c).getType(), rows, c);
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            IO.recordWrite(start, file.length());
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, ColumnType type, List<Object[]> rows, int c) throws IOException {
+        int n = rows.size();
+        switch (type) {
+            case INTEGER: {
+                int[] values = new int[n];
+                for (int r = 0; r < n; r++) {
+                    values[r] = (Integer) type.convert(rows.get(r)[c]);
+                }
+                writeInts(out, values);
+                break;
+            }
+            case DOUBLE: {
+                for (Object[] row : rows) {
+                    out.writeDouble((Double) type.convert(row[c]));
+                }
+                break;
+            }
+            case STRING: {
+                Map<String, Integer> dictionary = new HashMap<>();
+                int[] codes = new int[n];
+                for (int r = 0; r < n; r++) {
+                    String value = (String) type.convert(rows.get(r)[c]);
+                    Integer code = dictionary.get(value);
+                    if (code == null) {
+                        code = dictionary.size();
+                        dictionary.put(value, code);
+                    }
+                    codes[r] = code;
+                }
+                if (dictionary.size() * 2 > n) {
+                    out.writeByte(PLAIN);
+                    String[] values = new String[n];
+                    for (int r = 0; r < n; r++) {
+                        values[r] = (String) type.convert(rows.get(r)[c]);
+                    }
+                    writeStrings(out, values);
+                    break;
+                }
+                out.writeByte(DICTIONARY);
+                String[] words = new String[dictionary.size()];
+                for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+                    words[entry.getValue()] = entry.getKey();
+                }
+                out.writeInt(words.length);
+                writeStrings(out, words);
+                writeInts(out, codes);
+                break;
+            }
+        }
+    }
+
+    private static Object[] readColumn(DataInputStream in, ColumnType type, int rows) throws IOException {
+        Object[] column = new Object[rows];
+        switch (type) {
+            case INTEGER: {
+                int[] values = readInts(in, rows);
+                for (int r = 0; r < rows; r++) {
+                    column[r] = values[r];
+                }
+                break;
+            }
+            case DOUBLE: {
+                for (int r = 0; r < rows; r++) {
+                    column[r] = in.readDouble();
+                }
+                break;
+            }
+            case STRING: {
+                byte encoding = in.readByte();
+                if (encoding == PLAIN) {
+                    String[] values = readStrings(in, rows);
+                    System.arraycopy(values, 0, column, 0, rows);
+                    break;
+                }
+                if (encoding != DICTIONARY) {
+                    throw new IOException("Unknown string encoding: " + encoding);
+                }
+                String[] words = readStrings(in, in.readInt());
+                int[] codes = readInts(in, rows);
+                for (int r = 0; r < rows; r++) {
+                    column[r] = words[codes[r]];
+                }
+                break;
+            }
+        }
+        return column;
+    }
+
+    /**
+     * Writes an integer column with the smallest of the run length, frame of reference and delta encodings
+     * @param out
+     * @param values
+     * @throws IOException
+     */
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        int n = values.length;
+        if (n == 0) {
+            out.writeByte(PLAIN);
+            return;
+        }
+        int runs = 1;
+        long min = values[0];
+        long max = values[0];
+        long maxDelta = 0;
+        for (int i = 1; i < n; i++) {
+            if (values[i] != values[i - 1]) {
+                runs++;
+            }
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            maxDelta = Math.max(maxDelta, zigzag((long) values[i] - values[i - 1]));
+        }
+        int forWidth = bitWidth(max - min);
+        int deltaWidth = bitWidth(maxDelta);
+        long runLengthBits = runs * 64L;
+        long forBits = (long) forWidth * n;
+        long deltaBits = (long) deltaWidth * n;
+
+        if (runLengthBits <= forBits && runLengthBits <= deltaBits) {
+            out.writeByte(RUN_LENGTH);
+            out.writeInt(runs);
+            int start = 0;
+            for (int i = 1; i <= n; i++) {
+                if (i == n || values[i] != values[start]) {
+                    out.writeInt(values[start]);
+                    out.writeInt(i - start);
+                    start = i;
+                }
+            }
+        }
+        else if (forBits <= deltaBits) {
+            out.writeByte(FRAME_OF_REFERENCE);
+            out.writeLong(min);
+            out.writeByte(forWidth);
+            long[] packed = new long[n];
+            for (int i = 0; i < n; i++) {
+                packed[i] = values[i] - min;
+            }
+            writePacked(out, packed, forWidth);
+        }
+        else {
+            out.writeByte(DELTA);
+            out.writeInt(values[0]);
+            out.writeByte(deltaWidth);
+            long[] packed = new long[n];
+            for (int i = 1; i < n; i++) {
+                packed[i] = zigzag((long) values[i] - values[i - 1]);
+            }
+            writePacked(out, packed, deltaWidth);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int n) throws IOException {
+        int[] values = new int[n];
+        byte encoding = in.readByte();
+        switch (encoding) {
+            case PLAIN:
+                break;
+            case RUN_LENGTH: {
+                int runs = in.readInt();
+                int pos = 0;
+                for (int r = 0; r < runs; r++) {
+                    int value = in.readInt();
+                    int length = in.readInt();
+                    for (int i = 0; i < length; i++) {
+                        values[pos++] = value;
+                    }
+                }
+                break;
+            }
+            case FRAME_OF_REFERENCE: {
+                long min = in.readLong();
+                long[] packed = readPacked(in, n, in.readByte());
+                for (int i = 0; i < n; i++) {
+                    values[i] = (int) (packed[i] + min);
+                }
+                break;
+            }
+            case DELTA: {
+                int first = in.readInt();
+                long[] packed = readPacked(in, n, in.readByte());
+                values[0] = first;
+                for (int i = 1; i < n; i++) {
+                    values[i] = (int) (values[i - 1] + unzigzag(packed[i]));
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown integer encoding: " + encoding);
+        }
+        return values;
+    }
+
+    /**
+     * Writes a list of strings with front coding: each string is written as the length of the prefix
+     * it shares with the previous string followed by the (UTF-8 encoded) rest of the string
+     * @param out
+     * @param values
+     * @throws IOException
+     */
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        String previous = "";
+        for (String value : values) {
+            int shared = 0;
+            int max = Math.min(previous.length(), value.length());
+            while (shared < max && previous.charAt(shared) == value.charAt(shared)) {
+                shared++;
+            }
+            if (shared > 0 && Character.isHighSurrogate(value.charAt(shared - 1))) {
+                shared--;
+            }
+            byte[] suffix = value.substring(shared).getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, shared);
+            writeVarInt(out, suffix.length);
+            out.write(suffix);
+            previous = value;
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in, int n) throws IOException {
+        String[] values = new String[n];
+        String previous = "";
+        byte[] buffer = new byte[64];
+        for (int i = 0; i < n; i++) {
+            int shared = readVarInt(in);
+            int length = readVarInt(in);
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            String suffix = new String(buffer, 0, length, StandardCharsets.UTF_8);
+            values[i] = shared == 0 ? suffix : previous.substring(0, shared).concat(suffix);
+            previous = values[i];
+        }
+        return values;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Packs the (non negative) values using width bits per value
+     */
+    private static void writePacked(DataOutputStream out, long[] values, int width) throws IOException {
+        if (width == 0) {
+            return;
+        }
+        long word = 0;
+        int used = 0;
+        for (long value : values) {
+            word |= value << used;
+            if (used + width >= 64) {
+                out.writeLong(word);
+                int written = 64 - used;
+                word = written == 64 ? 0 : value >>> written;
+                used = width - written;
+            }
+            else {
+                used += width;
+            }
+        }
+        if (used > 0) {
+            out.writeLong(word);
+        }
+    }
+
+    private static long[] readPacked(DataInputStream in, int n, int width) throws IOException {
+        long[] values = new long[n];
+        if (width == 0) {
+            return values;
+        }
+        long mask = width == 64 ? -1L : (1L << width) - 1;
+        long word = 0;
+        int available = 0;
+        for (int i = 0; i < n; i++) {
+            if (available >= width) {
+                values[i] = word & mask;
+                word = width == 64 ? 0 : word >>> width;
+                available -= width;
+            }
+            else {
+                long next = in.readLong();
+                long value = word | (available == 0 ? next : next << available);
+                values[i] = value & mask;
+                int consumed = width - available;
+                word = consumed == 64 ? 0 : next >>> consumed;
+                available = 64 - consumed;
+            }
+        }
+        return values;
+    }
+
+    private static int bitWidth(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String describe(ISchema schema) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < schema.size(); i++) {
+            sb.append(schema.getColumn(i)).append(',');
+        }
+        return sb.toString();
+    }
+
+    private static File snapshotFile(String tablename, String folder) {
+        return new File(folder + "/" + tablename + ".qes");
+    }
+}
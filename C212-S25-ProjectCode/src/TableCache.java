@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the tables that are resident (loaded in memory) and of their (estimated) size
+ * When the resident tables go over the memory budget, the least recently used ones are chosen for eviction
+ * (the database replaces an evicted table by an empty one and reloads it from the disk when it is referenced again)
+ *
+ * The cache only does the bookkeeping: loading and evicting the tables is done by the database
+ * The hits, loads, reloads and evictions are counted in the metrics, the resident tables and bytes are gauges
+ */
+public class TableCache {
+    private static final long TUPLE_OVERHEAD = 16 + 16 + 16;
+    private static final long REFERENCE_SIZE = 4;
+    private static final LongAdder HITS = Metrics.counter("table.cache.hits");
+    private static final LongAdder LOADS = Metrics.counter("table.cache.loads");
+    private static final LongAdder RELOADS = Metrics.counter("table.cache.reloads");
+    private static final LongAdder EVICTIONS = Metrics.counter("table.cache.evictions");
+
+    private long budget;
+    private volatile long residentBytes;
+    private Map<String, Long> resident;
+    private List<String> evicted;
+    private Set<String> pinned;
+
+    /**
+     * constructor
+     * @param budget the memory budget (in bytes) of the resident tables
+     */
+    public TableCache(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + budget);
+        }
+        this.budget = budget;
+        this.resident = new LinkedHashMap<>(16, 0.75f, true);
+        this.evicted = new ArrayList<>();
+        this.pinned = new HashSet<>();
+        Metrics.gauge("table.cache.resident.bytes", this::getResidentBytes);
+        Metrics.gauge("table.cache.resident.tables", this::getResidentTables);
+    }
+
+    /**
+     * Returns true if the table is resident, and marks it as the most recently used table
+     * @param tableName
+     * @return
+     */
+    public boolean touch(String tableName) {
+        if (resident.get(key(tableName)) != null) {
+            HITS.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the table is resident (without marking it as used)
+     * @param tableName
+     * @return
+     */
+    public boolean isResident(String tableName) {
+        return resident.containsKey(key(tableName));
+    }
+
+    /**
+     * Records that the table was loaded from the disk
+     * @param table
+     */
+    public void loaded(ITable table) {
+        String key = key(table.getName());
+        if (evicted.remove(key)) {
+            RELOADS.increment();
+        }
+        else {
+            LOADS.increment();
+        }
+        long size = estimateSize(table);
+        Long old = resident.put(key, size);
+        residentBytes += size - (old == null ? 0 : old);
+    }
+
+    /**
+     * Adjusts the size of a resident table by the given number of bytes (after an insert, for example)
+     * @param tableName
+     * @param delta
+     */
+    public void grow(String tableName, long delta) {
+        String key = key(tableName);
+        Long size = resident.get(key);
+        if (size != null) {
+            resident.put(key, size + delta);
+            residentBytes += delta;
+        }
+    }
+
+    /**
+     * Recomputes the size of a resident table (after a delete, for example)
+     * @param table
+     */
+    public void resize(ITable table) {
+        String key = key(table.getName());
+        Long size = resident.get(key);
+        if (size != null) {
+            long newSize = estimateSize(table);
+            resident.put(key, newSize);
+            residentBytes += newSize - size;
+        }
+    }
+
+    /**
+     * Pins a table: it is never chosen for eviction
+     * @param tableName
+     */
+    public void pin(String tableName) {
+        pinned.add(key(tableName));
+    }
+
+    /**
+     * Returns the names of the tables to evict (least recently used first) to get back under the budget
+     * The given table (the one being used), the busy tables (tables not yet written to the disk, for example)
+     * and the pinned tables are never chosen
+     * The returned tables are recorded as evicted
+     * @param keep
+     * @param busy the names (in lower case) of the busy tables
+     * @return
+     */
+    public List<String> evict(String keep, Set<String> busy) {
+        List<String> victims = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> it = resident.entrySet().iterator();
+        while (residentBytes > budget && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(key(keep)) || busy.contains(entry.getKey()) || pinned.contains(entry.getKey())) {
+                continue;
+            }
+            residentBytes -= entry.getValue();
+            victims.add(entry.getKey());
+            evicted.add(entry.getKey());
+            EVICTIONS.increment();
+            it.remove();
+        }
+        return victims;
+    }
+
+    /**
+     * Estimates the heap size (in bytes) of a table (the allocated off heap size for an off heap table)
+     * @param table
+     * @return
+     */
+    public static long estimateSize(ITable table) {
+        if (table instanceof OffHeapTable) {
+            return ((OffHeapTable) table).getAllocatedBytes();
+        }
+        long size = 0;
+        for (ITuple tuple : table.getTuples()) {
+            size += estimateSize(tuple);
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the heap size (in bytes) of a tuple: the tuple, its value array and the values
+     * @param tuple
+     * @return
+     */
+    public static long estimateSize(ITuple tuple) {
+        Object[] values = tuple.getValues();
+        long size = TUPLE_OVERHEAD + REFERENCE_SIZE * values.length;
+        for (Object value : values) {
+            if (value instanceof String) {
+                size += 40 + ((String) value).length();
+            }
+            else if (value instanceof Double) {
+                size += 24;
+            }
+            else if (value != null) {
+                size += 16;
+            }
+        }
+        return size;
+    }
+
+    private static String key(String tableName) {
+        return tableName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Getters
+     */
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getResidentTables() {
+        return resident.size();
+    }
+
+    @Override
+    public String toString() {
+        return "resident tables: " + resident.size() + ", resident bytes: " + residentBytes + "/" + budget;
+    }
+}
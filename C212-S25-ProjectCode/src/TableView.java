@@ -0,0 +1,132 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A table view is a (read only) result table that does not copy the data of its source table
+ * It is made of a selection vector (the indexes of the selected rows of the source table)
+ * and a column map (the index, in the source schema, of each attribute of the view schema)
+ * Values are read from the source tuples only when the view's tuples are read
+ *
+ * The view is only valid as long as its source table is not modified
+ * (Database.selectCopy copies the results instead)
+ */
+public class TableView implements ITable {
+    private String name;
+    private ISchema schema;
+    private ITable source;
+    private int[] columnMap;
+    private int[] rowIds;
+    private int rowCount;
+
+    /**
+     * constructor
+     * @param name
+     * @param schema the schema of the view
+     * @param source the source table
+     * @param columnMap for each attribute of the view, the index of the attribute in the source schema
+     * @param rowIds the indexes of the selected rows in the source table
+     * @param rowCount the number of selected rows (the first rowCount entries of rowIds)
+     */
+    public TableView(String name, ISchema schema, ITable source, int[] columnMap, int[] rowIds, int rowCount) {
+        this.name = name;
+        this.schema = schema;
+        this.source = source;
+        this.columnMap = columnMap;
+        this.rowIds = rowIds;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Returns the view name
+     * @return
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Views are read only
+     * @param tuple
+     */
+    @Override
+    public void addTuple(ITuple tuple) {
+        throw new UnsupportedOperationException("Cannot add a tuple to a view");
+    }
+
+    /**
+     * Returns the tuples of the view
+     * The list does not hold the tuples: each tuple is a (lightweight) row view created when it is read
+     * @return
+     */
+    @Override
+    public List<ITuple> getTuples() {
+        List<ITuple> rows = source.getTuples();
+        return new AbstractList<ITuple>() {
+            @Override
+            public ITuple get(int index) {
+                if (index < 0 || index >= rowCount) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rowCount);
+                }
+                return new RowView(rows.get(rowIds[index]), columnMap);
+            }
+
+            @Override
+            public int size() {
+                return rowCount;
+            }
+        };
+    }
+
+    /**
+     * Returns the view schema
+     * @return
+     */
+    @Override
+    public ISchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * A (read only) tuple that reads its values from a tuple of the source table through the column map
+     */
+    private static class RowView implements ITuple {
+        private ITuple row;
+        private int[] columnMap;
+
+        RowView(ITuple row, int[] columnMap) {
+            this.row = row;
+            this.columnMap = columnMap;
+        }
+
+        @Override
+        public void setValue(int index, Object value) {
+            throw new UnsupportedOperationException("Cannot modify a tuple of a view");
+        }
+
+        @Override
+        public <T> T getValue(int index) {
+            return row.getValue(columnMap[index]);
+        }
+
+        @Override
+        public Object[] getValues() {
+            Object[] values = new Object[columnMap.length];
+            for (int i = 0; i < columnMap.length; i++) {
+                values[i] = row.getValue(columnMap[i]);
+            }
+            return values;
+        }
+
+        @Override
+        public void setValues(Object[] values) {
+            throw new UnsupportedOperationException("Cannot modify a tuple of a view");
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(getValues());
+        }
+    }
+}
@@ -1,62 +1,32 @@
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * A tuple is an ordered collection of Objects and their associated types (Integer, Double or String)
- * Objects are stored in an array while types are stored in a map of (index, type)
+ * Objects are stored in an array while types are read from the column descriptors of the schema
  *
  */
 public class Tuple implements ITuple {
     private Object[] values;
-    private Map<Integer, Class<?>> typeMap;
+    private ISchema schema;
 
     /**
-     * The constructor receives a schema and creates the object array and typemap (representing the tuple)
-     * The schema has the types of attributes stored as strings ("Integer", "Double", "String")
-     * Based upon these types the constructor stores the actual class (Integer.class, Double.class, String.class) to the typemap
+     * The constructor receives a schema and creates the object array (representing the tuple)
+     * The types are not copied: the schema's (precomputed) column descriptors are shared by all its tuples
      * @param schema
      */
     public Tuple(ISchema schema) {
-        int size = schema.getAttributes().size();
-        this.values = new Object[size];
-        this.typeMap = new HashMap<>();
-        for (int i = 0; i < size; i++) {
-
-            switch (schema.getType(i)) {
-                case "String":
-                    this.typeMap.put(i, String.class);
-                    break;
-                case "Integer":
-                    this.typeMap.put(i, Integer.class);
-                    break;
-                case "Double":
-                    this.typeMap.put(i, Double.class);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unsupported type: " + schema.getType(i));
-
-            }
-
-        }
+        this.schema = schema;
+        this.values = new Object[schema.size()];
     }
 
     /**
      * Stores the value at the given index in the (tuple) object
-     * The value is converted from the object to to its actual class from the typemap
+     * The value is converted from the object to its actual class from the column type
      * @param index
      * @param value
      */
     @Override
 
     public void setValue(int index, Object value) {
-        Class<?> expectedType = typeMap.get(index);
-        if (expectedType == Integer.class) {
-            values[index] = Integer.parseInt(value.toString());
-        } else if (expectedType == Double.class) {
-            values[index] = Double.parseDouble(value.toString());
-        } else if (expectedType == String.class) {
-            values[index] = value.toString();
-        }
+        values[index] = schema.getColumn(index).getType().convert(value);
     }
 
     /**
@@ -82,7 +52,7 @@ public class Tuple implements ITuple {
 
     /**
      * Sets the tuple values to the provided ones
-     * The values are converted from objects to their actual classes from the typemap
+     * The values are converted from objects to their actual classes from the column types
      * @param values
      */
     @Override
@@ -91,4 +61,4 @@ public class Tuple implements ITuple {
             setValue(i, values[i]);
         }
     }
-}
\ No newline at end of file
+}